@@ -0,0 +1,248 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ *   Compiles many expressions together so that what they share is computed once
+ *
+ *   The programs of all expressions go into one Optimizer, whose node table
+ *   hash-conses them into a single DAG: a subexpression that appears in
+ *   several expressions (or several times in one) is one node. The nodes are
+ *   put in an order where operands come first, and evaluate computes each of
+ *   them exactly once, then reads off the value of every expression's root.
+ *
+ *   Results are the same as Calculator.evaluate on each expression. A node
+ *   that fails (division by zero, a registered operator throwing) fails the
+ *   nodes above it, and an expression whose root failed is evaluated again
+ *   on its own to find which error comes first and where. Expressions that
+ *   do not parse give their error without being part of the DAG. Every node
+ *   that did not fail is evaluated, also one whose expressions all failed
+ *   through another operand: finding those would cost more than the
+ *   arithmetic it saves.
+ *
+ *   Variables are shared by name, see variables(). Objects are immutable
+ *   and may be shared between threads.
+ */
+final class BatchCompiler {
+
+    // One entry per node, in evaluation order
+    private final int[] ops;            // CompiledExpression opcode
+    private final int[] args;           // Operator id, variable slot for VAR, function and count for CALL
+    private final double[] constants;
+    private final int[] left;           // Operand node, -1 if none
+    private final int[] right;
+    private final int[][] calls;        // Argument nodes of a CALL, else null
+    // Per expression
+    private final int[] roots;          // -1 if it did not parse
+    private final CompiledExpression[] programs;
+    private final int[][] bindings;     // Batch slot of each of the program's variables
+    private final List<String> variables;
+    private final int instructions;
+
+    private BatchCompiler(List<Optimizer.Node> order, int[] roots, CompiledExpression[] programs,
+                          int[][] bindings, List<String> variables, Map<String, Integer> slots,
+                          int instructions) {
+        int n = order.size();
+        ops = new int[n];
+        args = new int[n];
+        constants = new double[n];
+        left = new int[n];
+        right = new int[n];
+        calls = new int[n][];
+        for (int i = 0; i < n; i++) {
+            Optimizer.Node node = order.get(i);
+            ops[i] = node.op;
+            args[i] = node.op == CompiledExpression.VAR ? slots.get(node.name) : node.arg;
+            constants[i] = node.value;
+            left[i] = node.left != null ? node.left.temp : -1;
+            right[i] = node.right != null ? node.right.temp : -1;
+            if (node.op == CompiledExpression.CALL) {
+                calls[i] = new int[node.children()];
+                for (int k = 0; k < calls[i].length; k++) {
+                    calls[i][k] = node.child(k).temp;
+                }
+            }
+        }
+        this.roots = roots;
+        this.programs = programs;
+        this.bindings = bindings;
+        this.variables = Collections.unmodifiableList(variables);
+        this.instructions = instructions;
+    }
+
+    static BatchCompiler compile(List<String> exprs) {
+        Parser parser = new Parser();
+        Optimizer optimizer = new Optimizer();
+        List<Optimizer.Node> order = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        Map<String, Integer> slots = new HashMap<>();
+        int[] roots = new int[exprs.size()];
+        CompiledExpression[] programs = new CompiledExpression[exprs.size()];
+        int[][] bindings = new int[exprs.size()][];
+        int instructions = 0;
+        for (int i = 0; i < roots.length; i++) {
+            String expr = exprs.get(i);
+            // An empty expression is NaN, as in Calculator.evaluate
+            CompiledExpression program = expr.isEmpty()
+                    ? new CompiledExpression.Builder().constant(Double.NaN).build()
+                    : parser.tryParse(expr);
+            programs[i] = program;
+            roots[i] = -1;
+            bindings[i] = new int[0];
+            if (program.isValid()) {
+                List<String> names = program.variables();
+                bindings[i] = new int[names.size()];
+                for (int slot = 0; slot < bindings[i].length; slot++) {
+                    Integer batchSlot = slots.get(names.get(slot));
+                    if (batchSlot == null) {
+                        batchSlot = variables.size();
+                        slots.put(names.get(slot), batchSlot);
+                        variables.add(names.get(slot));
+                    }
+                    bindings[i][slot] = batchSlot;
+                }
+                Optimizer.Node root = optimizer.tree(program);
+                optimizer.order(root, order);
+                roots[i] = root.temp;
+                instructions += program.code().length;
+            }
+        }
+        return new BatchCompiler(order, roots, programs, bindings, variables, slots, instructions);
+    }
+
+    // Evaluate expressions without variables
+    List<Result> evaluate() {
+        return evaluate(new double[0]);
+    }
+
+    // Evaluate with vars[slot] as the value of each variable in variables()
+    List<Result> evaluate(double[] vars) {
+        int n = ops.length;
+        double[] values = new double[n];
+        boolean[] failed = new boolean[n];
+        double[] arguments = new double[MathFunction.MAX_ARGS];
+        for (int i = 0; i < n; i++) {
+            int l = left[i];
+            int r = right[i];
+            if ((l >= 0 && failed[l]) || (r >= 0 && failed[r]) || (calls[i] != null && anyFailed(calls[i], failed))) {
+                failed[i] = true;
+                continue;
+            }
+            double a = l >= 0 ? values[l] : 0;
+            double b = r >= 0 ? values[r] : 0;
+            switch (ops[i]) {
+                case CompiledExpression.CONST:
+                    values[i] = constants[i];
+                    break;
+                case CompiledExpression.VAR:
+                    failed[i] = args[i] >= vars.length;
+                    values[i] = failed[i] ? Double.NaN : vars[args[i]];
+                    break;
+                case CompiledExpression.ADD:
+                    values[i] = a + b;
+                    break;
+                case CompiledExpression.SUB:
+                    values[i] = a - b;
+                    break;
+                case CompiledExpression.MUL:
+                    values[i] = a * b;
+                    break;
+                case CompiledExpression.DIV:
+                    failed[i] = b == 0;
+                    values[i] = a / b;
+                    break;
+                case CompiledExpression.POW:
+                    values[i] = MathFunction.power(a, b);
+                    break;
+                case CompiledExpression.MOD:
+                    failed[i] = b == 0;
+                    values[i] = a % b;
+                    break;
+                case CompiledExpression.NEG:
+                    values[i] = -a;
+                    break;
+                case CompiledExpression.CALL:
+                    for (int k = 0; k < calls[i].length; k++) {
+                        arguments[k] = values[calls[i][k]];
+                    }
+                    try {
+                        values[i] = CompiledExpression.function(args[i]).apply(arguments, 0, calls[i].length);
+                    } catch (RuntimeException e) {
+                        failed[i] = true;
+                    }
+                    break;
+                default:
+                    try {
+                        Operator op = Operator.byId(args[i]);
+                        values[i] = ops[i] == CompiledExpression.UNARY ? op.apply(a) : op.apply(a, b);
+                    } catch (RuntimeException e) {
+                        failed[i] = true;
+                    }
+                    break;
+            }
+        }
+        List<Result> results = new ArrayList<>(roots.length);
+        for (int e = 0; e < roots.length; e++) {
+            int root = roots[e];
+            results.add(root >= 0 && !failed[root] ? Result.ok(values[root])
+                    : programs[e].evaluate(bind(bindings[e], vars)));
+        }
+        return results;
+    }
+
+    private static boolean anyFailed(int[] nodes, boolean[] failed) {
+        for (int node : nodes) {
+            if (failed[node]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // vars of the batch as the slots of a program, cut at the first one that
+    // has no value so evaluate reports it
+    private static double[] bind(int[] batchSlots, double[] vars) {
+        double[] bound = new double[batchSlots.length];
+        for (int slot = 0; slot < bound.length; slot++) {
+            int batchSlot = batchSlots[slot];
+            if (batchSlot >= vars.length) {
+                return Arrays.copyOf(bound, slot);
+            }
+            bound[slot] = vars[batchSlot];
+        }
+        return bound;
+    }
+
+    int size() {
+        return roots.length;
+    }
+
+    // Names of the variables of all expressions, in order of first use
+    List<String> variables() {
+        return variables;
+    }
+
+    // Instructions of the expressions compiled one by one
+    int instructions() {
+        return instructions;
+    }
+
+    // Distinct subexpressions, each evaluated once
+    int nodes() {
+        return ops.length;
+    }
+
+    // Work saved by sharing, instructions per node
+    double dedupRatio() {
+        return ops.length == 0 ? 1 : (double) instructions / ops.length;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchCompiler[expressions=" + roots.length + ", instructions=" + instructions
+                + ", nodes=" + ops.length + ", dedup=" + String.format("%.2f", dedupRatio()) + "]";
+    }
+}
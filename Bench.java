@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+import static java.lang.System.out;
+
+/**
+ * Micro benchmarks for the Calculator stages and eval end to end
+ *
+ * Each benchmark is warmed up, then run for a fixed time. Reported per
+ * benchmark: throughput (ops/s), average time (ns/op) and allocation
+ * (bytes/op, from the thread allocation counter, like the JMH gc profiler).
+ *
+ * Run: java Bench [seconds per benchmark] [--baseline file] [--save file]
+ *  --save writes the results, --baseline compares with a saved run
+ *
+ * The same workloads run under JMH (forks, iterations, -prof gc) with the
+ * Maven build, see jmh/pom.xml. This harness needs no build and no
+ * dependencies, and its saved runs are the baseline.
+ */
+class Bench {
+
+    public static void main(String[] args) throws IOException {
+        Bench bench = new Bench();
+        Path baseline = null;
+        Path save = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--baseline")) {
+                baseline = Paths.get(args[++i]);
+            } else if (args[i].equals("--save")) {
+                save = Paths.get(args[++i]);
+            } else {
+                bench.seconds = Double.parseDouble(args[i]);
+            }
+        }
+        bench.runAll();
+        bench.report(baseline, save);
+    }
+
+    // Inputs, see inputs()
+    static final String SHORT = "(1 + 2) * 3 - 4 / 2";
+    static final int NESTING = 1_000;
+    static final int POW_CHAIN = 1_000;
+    static final int GENERATED_TOKENS = 100_000;
+    static final String FORMULA = "3 * x * x - x / y + 2 * y";
+    static final int ROWS = 100_000;
+    static final int RELATED = 200;
+    static final String MATH = "sqrt(x * x + y * y) + exp(-x / 1000) * log(y) + y ^ 3 - x ^ 1.5 / max(x, y, 1)";
+
+    final Map<String, double[]> results = new LinkedHashMap<>();
+    double seconds = 1;
+    volatile double sink;
+
+    void runAll() {
+        for (Map.Entry<String, DoubleSupplier> workload : workloads().entrySet()) {
+            run(workload.getKey(), workload.getValue());
+        }
+    }
+
+    // Every benchmark by name, in the order run. The JMH benchmarks in jmh/
+    // run these too, so both measure the same code.
+    static Map<String, DoubleSupplier> workloads() {
+        Map<String, DoubleSupplier> workloads = new LinkedHashMap<>();
+        Calculator calculator = new Calculator();
+        Calculator uncached = new Calculator(0);
+        for (Map.Entry<String, String> input : inputs().entrySet()) {
+            String name = input.getKey();
+            String expr = input.getValue();
+            List<String> tokens = calculator.tokenize(expr);
+            List<String> postfix = calculator.infix2Postfix(tokens);
+            CompiledExpression compiled = calculator.compile(expr);
+            Lexer lexer = new Lexer();
+            Lexer.Tokens buffer = new Lexer.Tokens();
+
+            workloads.put(name + ".tokenize", () -> calculator.tokenize(expr).size());
+            workloads.put(name + ".lex", () -> lexer.lex(expr, buffer).size());
+            workloads.put(name + ".infix2Postfix", () -> calculator.infix2Postfix(tokens).size());
+            workloads.put(name + ".evalPostfix", () -> calculator.evalPostfix(postfix));
+            workloads.put(name + ".compile", () -> calculator.compile(expr).stackSize());
+            workloads.put(name + ".compiledEval", compiled::eval);
+            workloads.put(name + ".eval", () -> calculator.eval(expr));
+            workloads.put(name + ".evalUncached", () -> uncached.eval(expr));
+        }
+        CompiledExpression plain = new Parser().parse(SHORT);
+        Numeric<java.math.BigDecimal> decimal = Numeric.decimal(java.math.MathContext.DECIMAL64);
+        workloads.put("short.rational", () -> Numeric.RATIONAL.eval(plain).doubleValue());
+        workloads.put("short.decimal", () -> decimal.eval(plain).doubleValue());
+        CompiledExpression formula = calculator.compile(FORMULA);
+        double[][] columns = new double[2][ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            columns[0][i] = i;
+            columns[1][i] = 1 + i % 100;
+        }
+        double[] out = new double[ROWS];
+        workloads.put("formula.rows", () -> {
+            formula.evalRows(columns, out, 0, ROWS);
+            return out[ROWS - 1];
+        });
+        workloads.put("formula.columns", () -> {
+            formula.evalColumns(columns, out, 0, ROWS);
+            return out[ROWS - 1];
+        });
+        CompiledExpression math = calculator.compile(MATH);
+        EvalContext exact = new EvalContext();
+        EvalContext fast = new EvalContext().fastMath(true);
+        workloads.put("math.exact", () -> evalRows(math, columns, exact));
+        workloads.put("math.fast", () -> evalRows(math, columns, fast));
+        List<String> related = related(RELATED);
+        List<CompiledExpression> each = new ArrayList<>();
+        for (String expr : related) {
+            each.add(calculator.compile(expr));
+        }
+        double[] xy = {1.5, 2.5};
+        workloads.put("related.each", () -> {
+            double sum = 0;
+            for (CompiledExpression e : each) {
+                sum += e.eval(xy);
+            }
+            return sum;
+        });
+        BatchCompiler shared = BatchCompiler.compile(related);
+        workloads.put("related.shared", () -> shared.evaluate(xy).size());
+        return workloads;
+    }
+
+    // Sum over all rows, one eval per row on context
+    static double evalRows(CompiledExpression expr, double[][] columns, EvalContext context) {
+        double[] row = new double[columns.length];
+        double sum = 0;
+        for (int i = 0; i < columns[0].length; i++) {
+            for (int k = 0; k < row.length; k++) {
+                row[k] = columns[k][i];
+            }
+            sum += expr.eval(row, context);
+        }
+        return sum;
+    }
+
+    // Realistic inputs, all valid and without division by zero
+    static Map<String, String> inputs() {
+        Map<String, String> inputs = new LinkedHashMap<>();
+        inputs.put("short", SHORT);
+        inputs.put("nested", "(".repeat(NESTING) + "1" + " + 1)".repeat(NESTING));
+        inputs.put("powChain", "1" + " ^ 1".repeat(POW_CHAIN));
+        inputs.put("generated", generate(GENERATED_TOKENS, new Random(42)));
+        return inputs;
+    }
+
+    // n formulas with the same large prefix and different tails
+    static List<String> related(int n) {
+        String prefix = "(x + 1) ^ 3 * (y - x / 3) - (x * y + 2) / (y + 4) + (x - y) ^ 2 * (x + y) ^ 2";
+        List<String> exprs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            exprs.add(prefix + " + " + i + " * x");
+        }
+        return exprs;
+    }
+
+    // A random expression of about n tokens using all operators and parentheses
+    static String generate(int n, Random rnd) {
+        StringBuilder sb = new StringBuilder();
+        int tokens = 0;
+        int open = 0;
+        sb.append(1 + rnd.nextInt(9));
+        while (tokens < n) {
+            sb.append(' ').append("+-*/"
+                    .charAt(rnd.nextInt(4))).append(' ');
+            if (rnd.nextInt(8) == 0) {
+                sb.append('(');
+                open++;
+            }
+            sb.append(1 + rnd.nextInt(99));
+            if (open > 0 && rnd.nextInt(4) == 0) {
+                sb.append(')');
+                open--;
+            }
+            tokens += 4;
+        }
+        sb.append(")".repeat(open));
+        return sb.toString();
+    }
+
+    void run(String name, DoubleSupplier op) {
+        long budget = (long) (seconds * 1e9);
+        measure(op, budget / 2);                      // Warm up
+        double[] r = measure(op, budget);
+        results.put(name, r);
+        out.printf("%-28s %14.1f ops/s %14.1f ns/op %12.1f B/op%n", name, r[0], r[1], r[2]);
+    }
+
+    // Returns {ops/s, ns/op, bytes/op}
+    double[] measure(DoubleSupplier op, long nanos) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long ops = 0;
+        double acc = 0;
+        long batch = 1;
+        long bytes0 = threads.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; i++) {
+                acc += op.getAsDouble();
+            }
+            ops += batch;
+            batch = Math.min(batch * 2, 1 << 16);
+            elapsed = System.nanoTime() - t0;
+        } while (elapsed < nanos);
+        long bytes = threads.getThreadAllocatedBytes(tid) - bytes0;
+        sink = acc;
+        return new double[]{ops * 1e9 / elapsed, (double) elapsed / ops, (double) bytes / ops};
+    }
+
+    void report(Path baseline, Path save) throws IOException {
+        if (save != null) {
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, double[]> r : results.entrySet()) {
+                double[] v = r.getValue();
+                lines.add(r.getKey() + " " + v[0] + " " + v[1] + " " + v[2]);
+            }
+            Files.write(save, lines);
+        }
+        if (baseline != null) {
+            out.println();
+            out.println("Compared with " + baseline + " (time and allocation, new / old)");
+            for (String line : Files.readAllLines(baseline)) {
+                String[] parts = line.trim().split(" ");
+                double[] now = results.get(parts[0]);
+                if (now != null) {
+                    out.printf("%-28s %8.2fx time %8.2fx alloc%n", parts[0],
+                            now[1] / Double.parseDouble(parts[2]),
+                            now[2] / Math.max(1, Double.parseDouble(parts[3])));
+                }
+            }
+        }
+    }
+}
@@ -1,9 +1,11 @@
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static java.lang.Double.NaN;
-import static java.lang.Double.valueOf;
-import static java.lang.Math.pow;
-import static java.lang.System.out;
 
 
 /*
@@ -13,7 +15,10 @@ import static java.lang.System.out;
  *   own file (which must be named Calculator.java)
  *
  *   NOTE:
- *   - No negative numbers implemented
+ *   - Negative numbers are written with prefix minus, -2 ^ 2 is -(2 ^ 2)
+ *   - Functions are called as sqrt(x) or max(a, b, c), see MathFunction
+ *   - A Calculator may be shared between threads, the only mutable state is
+ *     the (thread-safe) cache of compiled expressions
  */
 
 public class Calculator {
@@ -24,157 +29,371 @@ public class Calculator {
     final static String DIV_BY_ZERO = "Division with 0";
     final static String MISSING_OPERATOR = "Missing operator or parenthesis";
     final static String OP_NOT_FOUND = "Operator not found";
+    final static String NOT_EXACT = "No exact result";
+    final static String WRONG_ARGUMENTS = "Wrong number of arguments";
 
-    // Definition of operators
-    final static String OPERATORS = "+-*/^";
+    // Definition of operators, see Operator for the full table
+    final static String OPERATORS = "+-*/%^";
 
-    // Method used in REPL
+    final static int DEFAULT_CACHE_SIZE = 1024;
+
+    // Compiled expressions, keyed by normalized expression text
+    private final ExpressionCache cache;
+    private final Function<String, CompiledExpression> compiler = this::tryCompile;
+    // Off until metrics().setEnabled(true)
+    private final Metrics metrics = new Metrics();
+
+    Calculator() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    // cacheSize 0 turns off caching
+    Calculator(int cacheSize) {
+        cache = new ExpressionCache(cacheSize);
+    }
+
+    // Method used in REPL, throws IllegalArgumentException on errors. Once
+    // expr is cached nothing is allocated, not even a Result.
     double eval(String expr) {
         if (expr.length() == 0) {
             return NaN;
         }
-        List<String> tokens = tokenize(expr);
-        List<String> postfix = infix2Postfix(tokens);
-        return evalPostfix(postfix);
+        if (!metrics.enabled()) {
+            return cache.get(expr, compiler).eval();
+        }
+        Result result = evaluate(expr);
+        if (!result.isOk()) {
+            throw new IllegalArgumentException(result.error);
+        }
+        return result.value;
+    }
+
+    // Like eval but errors are returned, with their position, not thrown.
+    // Nothing on this path creates an exception, and invalid expressions are
+    // cached like valid ones (until an operator or function is registered),
+    // so bad input repeated is cheap too.
+    Result evaluate(String expr) {
+        EvalContext context = EvalContext.acquire();
+        try {
+            return evaluate(expr, context);
+        } finally {
+            context.release();
+        }
+    }
+
+    // As evaluate(expr), on a context the caller keeps (and does not share)
+    // instead of one from the pool
+    Result evaluate(String expr, EvalContext context) {
+        if (expr.length() == 0) {
+            return Result.ok(NaN);
+        }
+        Result result = metrics.enabled()
+                ? evaluateMeasured(expr, context)
+                : cache.get(expr, compiler).evaluate(context);
+        // Cached programs are compiled from the normalized text
+        return result.position < 0 ? result : result.at(ExpressionCache.sourcePosition(expr, result.position));
+    }
+
+    private Result evaluateMeasured(String expr, EvalContext context) {
+        long start = System.nanoTime();
+        metrics.evaluation(expr.length());
+        CompiledExpression compiled = cache.get(expr, compiler);
+        long evalStart = System.nanoTime();
+        Result result = compiled.evaluate(context);
+        if (result.isOk()) {
+            metrics.time(Metrics.Stage.EVAL, evalStart);
+            metrics.time(Metrics.Stage.TOTAL, start);
+        } else {
+            metrics.error(result.code);
+        }
+        return result;
+    }
+
+    ExpressionCache cache() {
+        return cache;
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    // Parse once, evaluate many times with CompiledExpression.eval(). Throws
+    // IllegalArgumentException on bad input.
+    CompiledExpression compile(String expr) {
+        CompiledExpression compiled = tryCompile(expr);
+        if (!compiled.isValid()) {
+            throw new IllegalArgumentException(compiled.error());
+        }
+        return compiled;
+    }
+
+    // As compile, but bad input gives an invalid expression holding the error
+    CompiledExpression tryCompile(String expr) {
+        long start = metrics.enabled() ? System.nanoTime() : 0;
+        EvalContext context = EvalContext.acquire();
+        CompiledExpression parsed;
+        try {
+            parsed = context.parser.tryParse(expr);
+        } finally {
+            context.release();
+        }
+        Optimizer optimizer = new Optimizer();
+        CompiledExpression compiled = optimizer.run(parsed);
+        if (start != 0 && compiled.isValid()) {
+            metrics.time(Metrics.Stage.COMPILE, start);
+            metrics.optimized(optimizer);
+        }
+        return compiled;
+    }
+
+    // Evaluate in another number type, as Numeric.RATIONAL or
+    // Numeric.decimal(MathContext.DECIMAL64). Not cached and not optimized,
+    // folding constants in double would round them.
+    <T> T eval(String expr, Numeric<T> numeric) {
+        return numeric.eval(expr, new Parser().parse(expr));
+    }
+
+    // ------  Asynchronous evaluation -------------------
+
+    // Completes with the Result, never exceptionally. Runs on Workers.shared(),
+    // virtual threads when the JDK has them. See also EvalProcessor.
+    CompletableFuture<Result> evalAsync(String expr) {
+        return evalAsync(expr, Workers.shared());
+    }
+
+    CompletableFuture<Result> evalAsync(String expr, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> evaluate(expr), executor);
+    }
+
+    // ------  Batch evaluation -------------------
+
+    // Items per task in a batch, small enough to balance, big enough to amortize
+    final static int BATCH_CHUNK = 256;
+    // Chunks a streaming evaluation may have in flight
+    final static int BATCH_IN_FLIGHT = 64;
+
+    // Evaluate all, in parallel on the common fork-join pool
+    List<Result> evalAll(List<String> exprs) {
+        return evalAll(exprs, ForkJoinPool.commonPool());
+    }
+
+    // Evaluate all, in parallel on executor. Results are in input order, an
+    // error in one expression is reported in its Result and does not stop the rest.
+    List<Result> evalAll(List<String> exprs, Executor executor) {
+        Result[] results = new Result[exprs.size()];
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < results.length; from += BATCH_CHUNK) {
+            int start = from;
+            int end = Math.min(from + BATCH_CHUNK, results.length);
+            tasks.add(CompletableFuture.runAsync(() -> evalRange(exprs, results, start, end), executor));
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        return Arrays.asList(results);
+    }
+
+    private void evalRange(List<String> exprs, Result[] results, int start, int end) {
+        for (int i = start; i < end; i++) {
+            results[i] = evaluate(exprs.get(i));
+        }
+    }
+
+    // Streaming variant: pulls expressions from in and passes results to out in
+    // input order, as soon as they are ready. At most BATCH_IN_FLIGHT chunks
+    // are read ahead, so memory use does not grow with the input.
+    void evalAll(Iterator<String> in, Consumer<Result> out, Executor executor) {
+        Deque<CompletableFuture<List<Result>>> inFlight = new ArrayDeque<>();
+        while (in.hasNext()) {
+            List<String> chunk = new ArrayList<>(BATCH_CHUNK);
+            while (in.hasNext() && chunk.size() < BATCH_CHUNK) {
+                chunk.add(in.next());
+            }
+            inFlight.add(CompletableFuture.supplyAsync(() -> evalChunk(chunk), executor));
+            if (inFlight.size() >= BATCH_IN_FLIGHT) {
+                inFlight.remove().join().forEach(out);
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            inFlight.remove().join().forEach(out);
+        }
+    }
+
+    private List<Result> evalChunk(List<String> chunk) {
+        List<Result> results = new ArrayList<>(chunk.size());
+        for (String expr : chunk) {
+            results.add(evaluate(expr));
+        }
+        return results;
+    }
+
+    // Evaluate all on this thread, computing a subexpression that several
+    // share only once (see BatchCompiler). For batches of related formulas.
+    List<Result> evalShared(List<String> exprs) {
+        return BatchCompiler.compile(exprs).evaluate();
     }
 
     // ------  Evaluate RPN expression -------------------
     double evalPostfix(List<String> postfix) {
-        Deque<String> stack = new ArrayDeque<String>();
-        double d1;
-        double d2;
-        double temp;
-        if (postfix.size() == 1){
-            return valueOf(postfix.get(0));
-        }
-        for (String pf:postfix){
-            if (!isOperator(pf)){
-                stack.push(pf);
-            } else {
-                try {
-                    d1 = Double.valueOf(stack.pop());                              
-                    d2 = Double.valueOf(stack.pop());                               
-                    temp = applyOperator(pf,d1,d2);                                 
-                    stack.push(String.valueOf(temp));                               
-                }
-                catch (NoSuchElementException e){
-                    throw new IllegalArgumentException(MISSING_OPERAND);
-                }
-            }
+        long start = metrics.enabled() ? System.nanoTime() : 0;
+        double value = CompiledExpression.of(postfix).eval();
+        if (start != 0) {
+            metrics.time(Metrics.Stage.EVAL_POSTFIX, start);
         }
-        return Double.valueOf(stack.pop());                                 
+        return value;
     }
 
 
     double applyOperator(String op, double d1, double d2) {
-        switch (op) {
-            case "+":
-                return d1 + d2;
-            case "-":
-                return d2 - d1;
-            case "*":
-                return d1 * d2;
-            case "/":
-                if (d1 == 0) {
-                    throw new IllegalArgumentException(DIV_BY_ZERO);
-                }
-                return d2 / d1;
-            case "^":
-                return pow(d2, d1);
+        Operator o = Operator.byToken(op);
+        if (o == null || o.isPrefix()) {
+            throw new RuntimeException(OP_NOT_FOUND);
         }
-        throw new RuntimeException(OP_NOT_FOUND);
+        return o.apply(d2, d1);
     }
 
     // ------- Infix 2 Postfix --------------------
 
+    // Mark "(" on the operator stack, the second one the "(" of a call.
+    // Never registered.
+    private static final Operator LEFT_PAREN = Operator.prefix('(', "(", 0, a -> a);
+    private static final Operator CALL_PAREN = Operator.prefix('(', "(", 0, a -> a);
+
+    // A call is written name( and is name(n) in postfix, n the number of arguments
+
     List<String> infix2Postfix(List<String> infix) {
-        List<String> postfix = new ArrayList<String>();                       
-        Deque<String> stack = new ArrayDeque<String>();
-        String operators = "-+*/^()";
-        int countOperators = 0;
-        int countOperands = 0;
-        for (int i = 0; i < infix.size(); i++) {
-            if (!operators.contains(infix.get(i))) {
-                postfix.add(infix.get(i));
-                countOperands++;
-            } else if (operators.contains(infix.get(i))) {
-                if (infix.get(i).equals(")")) {
-                    for (int k = 0; k < stack.size(); k++) {
-                        if (!stack.peek().equals("(")) {
-                            postfix.add(stack.pop());
-                            countOperators++;
-                        } else {
-                            stack.pop();
-                            break;
-                        }
-                    }
-                } else if (stack.isEmpty() || stack.peek().equals("(")) {
-                    stack.push(infix.get(i));
-                } else if (infix.get(i).contains("(")) {
-                    stack.push(infix.get(i));
-                } else if (getPrecedence(stack.peek()) > getPrecedence(infix.get(i))) {
-                    while (!stack.isEmpty() && getPrecedence(stack.peek()) > getPrecedence(infix.get(i))) {     
-                        postfix.add(stack.pop());
-                        countOperators++;
-                    }
-                    stack.push(infix.get(i));
-                } else if (getPrecedence(stack.peek()) < getPrecedence(infix.get(i))) {
-                    stack.push(infix.get(i));
-                } else if (getPrecedence(stack.peek()) == getPrecedence(infix.get(i))) {                
-                    if (getAssociativity(infix.get(i)) == Assoc.LEFT) {
-                        postfix.add(stack.pop());
-                        stack.push(infix.get(i));
-                        countOperators++;
-                    } else {
-                        stack.push(infix.get(i));
+        long start = metrics.enabled() ? System.nanoTime() : 0;
+        List<String> postfix = infix2Postfix(infix, true);
+        if (start != 0) {
+            metrics.time(Metrics.Stage.INFIX2POSTFIX, start);
+        }
+        return postfix;
+    }
+
+    // As infix2Postfix, if not complete infix is only the start of an
+    // expression and may end anywhere, only errors inside it are thrown
+    private List<String> infix2Postfix(List<String> infix, boolean complete) {
+        List<String> postfix = new ArrayList<String>();
+        Deque<Operator> stack = new ArrayDeque<Operator>();
+        // Per CALL_PAREN on the stack, the function and its arguments so far
+        Deque<MathFunction> calls = new ArrayDeque<MathFunction>();
+        Deque<Integer> counts = new ArrayDeque<Integer>();
+        boolean operand = true;                     // Expecting an operand
+        for (String token : infix) {
+            if (token.equals("(")) {
+                if (!operand) {
+                    throw new IllegalArgumentException(MISSING_OPERATOR);
+                }
+                stack.push(LEFT_PAREN);
+            } else if (token.endsWith("(")) {
+                MathFunction fn = MathFunction.byName(token.substring(0, token.length() - 1));
+                if (fn == null) {
+                    throw new IllegalArgumentException(OP_NOT_FOUND);
+                }
+                if (!operand) {
+                    throw new IllegalArgumentException(MISSING_OPERATOR);
+                }
+                stack.push(CALL_PAREN);
+                calls.push(fn);
+                counts.push(1);
+            } else if (token.equals(",")) {
+                if (operand) {
+                    throw new IllegalArgumentException(MISSING_OPERAND);
+                }
+                while (!stack.isEmpty() && !isParenthesis(stack.peek())) {
+                    postfix.add(stack.pop().token);
+                }
+                if (stack.peek() != CALL_PAREN) {
+                    throw new IllegalArgumentException(MISSING_OPERATOR);
+                }
+                if (counts.peek() == MathFunction.MAX_ARGS) {
+                    throw new IllegalArgumentException(WRONG_ARGUMENTS);
+                }
+                counts.push(counts.pop() + 1);
+                operand = true;
+            } else if (token.equals(")")) {
+                // f() has no arguments, anywhere else ) needs an operand before it
+                boolean empty = operand && stack.peek() == CALL_PAREN && counts.peek() == 1;
+                if (operand && !empty) {
+                    throw new IllegalArgumentException(MISSING_OPERAND);
+                }
+                if (popToParenthesis(stack, postfix) == CALL_PAREN) {
+                    MathFunction fn = calls.pop();
+                    int count = empty ? 0 : counts.peek();
+                    counts.pop();
+                    if (!fn.accepts(count)) {
+                        throw new IllegalArgumentException(WRONG_ARGUMENTS);
                     }
+                    postfix.add(fn.name + "(" + count + ")");
                 }
+                operand = false;
+            } else if (isOperator(token)) {
+                Operator op = operand ? Operator.prefix(token.charAt(0)) : Operator.infix(token.charAt(0));
+                if (op == null) {
+                    throw new IllegalArgumentException(operand ? MISSING_OPERAND : MISSING_OPERATOR);
+                }
+                if (!op.isPrefix()) {
+                    popHigher(stack, postfix, op);
+                }
+                stack.push(op);
+                operand = true;
+            } else {
+                if (!operand) {
+                    throw new IllegalArgumentException(MISSING_OPERATOR);
+                }
+                postfix.add(token);
+                operand = false;
             }
         }
-        while (!stack.isEmpty() && !stack.peek().equals("(")) {        
-            postfix.add(stack.pop());
-            countOperators++;
+        if (complete && operand) {
+            throw new IllegalArgumentException(MISSING_OPERAND);
         }
-    if (countOperators + 1 < countOperands) {
-         throw new IllegalArgumentException(MISSING_OPERATOR);
-        }
-       // System.out.println(postfix);
+        popToParenthesis(stack, postfix);
         return postfix;
     }
 
+    // Pop operators that bind tighter than op (or as tight, op left associative)
+    void popHigher(Deque<Operator> stack, List<String> postfix, Operator op) {
+        while (!stack.isEmpty() && !isParenthesis(stack.peek()) && Parser.binds(stack.peek(), op)) {
+            postfix.add(stack.pop().token);
+        }
+    }
 
-    boolean isOperator(String tokens){
-        String[] operators = {"+","-","*","/","^","(",")"};
-        for (String o : operators) {
-            if (o.contains(tokens)) {
-                return true;
-            }
+    // Pop until "(" (which is removed and returned) or the stack is empty
+    Operator popToParenthesis(Deque<Operator> stack, List<String> postfix) {
+        while (!stack.isEmpty() && !isParenthesis(stack.peek())) {
+            postfix.add(stack.pop().token);
         }
-        return false;
+        return stack.poll();
     }
 
+    private static boolean isParenthesis(Operator op) {
+        return op == LEFT_PAREN || op == CALL_PAREN;
+    }
 
-    int getPrecedence(String op) {
-        if ("+-".contains(op)) {
-            return 2;
-        } else if ("*/".contains(op)) {
-            return 3;
-        } else if ("^".contains(op)) {
-            return 4;
-        } else {
-            throw new RuntimeException(OP_NOT_FOUND);
+    // Single character operator token (infix or prefix)
+    boolean isOperator(String token) {
+        if (token.length() != 1) {
+            return false;
         }
+        char ch = token.charAt(0);
+        return Operator.infix(ch) != null || Operator.prefix(ch) != null;
     }
 
-    
+
+    int getPrecedence(String op) {
+        return operatorFor(op).precedence;
+    }
+
+
     Assoc getAssociativity(String op) {
-        if ("+-*/".contains(op)) {
-            return Assoc.LEFT;
-        } else if ("^".contains(op)) {
-            return Assoc.RIGHT;
-        } else {
+        return operatorFor(op).assoc;
+    }
+
+    Operator operatorFor(String op) {
+        Operator o = op.length() == 1 ? Operator.infix(op.charAt(0)) : Operator.byToken(op);
+        if (o == null) {
             throw new RuntimeException(OP_NOT_FOUND);
         }
+        return o;
     }
 
     enum Assoc {
@@ -184,43 +403,22 @@ public class Calculator {
 
     // ---------- Tokenize -----------------------
 
-boolean isOperator ( char ch){
-    return (ch == '(' || ch == ')' || ch == '^' || ch == '/' || ch == '*' || ch == '+' || ch == '-');
-}
-
-
     List<String> tokenize(String expr) {
+        long start = metrics.enabled() ? System.nanoTime() : 0;
         List<String> tokens = new ArrayList<String>();
-        char[] arr = expr.toCharArray();
-        StringBuilder sb = new StringBuilder();
-        for (char ch2 : expr.toCharArray()) {
-            if (Character.isDigit(ch2)) {                           // if Digit
-                sb.append(ch2);
-            } else if (isOperator(ch2)) {                           // if Operator
-                if (sb.length() != 0) {
-                    tokens.add(sb.toString());
-                    sb.setLength(0);
-                    sb.append(ch2);
-                    tokens.add(sb.toString());
-                    sb.setLength(0);
-                } else {
-                    sb.append(ch2);                                 //if sb empty, ex. + 10
-                    tokens.add(sb.toString());
-                    sb.setLength(0);
-                }
-            } else if (sb.length() != 0) {                          // if Whitespace
-                tokens.add(sb.toString());
-                sb.setLength(0);
+        Lexer lexer = new Lexer().reset(expr);
+        for (Lexer.Kind kind = lexer.next(); kind != Lexer.Kind.END; kind = lexer.next()) {
+            if (kind == Lexer.Kind.ERROR) {
+                // An error in the tokens before is found first, as by Parser
+                infix2Postfix(tokens, false);
+                throw new IllegalArgumentException(lexer.error());
             }
+            // A call as name(, without any space before the (
+            tokens.add(kind == Lexer.Kind.FUNCTION ? lexer.name() + "(" : expr.substring(lexer.start(), lexer.end()));
         }
-        if (sb.length() != 0) {                                     // empty sb
-            tokens.add(sb.toString());
-            sb.setLength(0);
-        }
-        if (!tokens.contains("(") && tokens.contains(")") || tokens.contains("(") && !tokens.contains(")")) {
-            throw new IllegalArgumentException(MISSING_OPERATOR);
-        }
-          // System.out.println(tokens);
-            return tokens;
+        if (start != 0) {
+            metrics.time(Metrics.Stage.TOKENIZE, start);
         }
+        return tokens;
     }
+}
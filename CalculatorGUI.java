@@ -1,8 +1,10 @@
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
@@ -12,16 +14,32 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
 import javafx.stage.Stage;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
 /*
      A graphical user interface for the Calculator
 
      NOTE: It's also possible to use FXML markup to define the GUI
 
-      **** NOTHING TO DO HERE ****
+     Evaluation runs on a single worker thread, never on the JavaFX
+     application thread. Every edit of the text field is handed to an
+     IncrementalEvaluator there and its preview is shown below the field.
+     Only the latest text is evaluated, edits made meanwhile are skipped.
  */
 public class CalculatorGUI extends Application {
 
     final Calculator calculator = new Calculator();
+    // Confined to the worker thread
+    final IncrementalEvaluator incremental = new IncrementalEvaluator();
+    final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "calculator-eval");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Text waiting for a preview, null when none
+    final AtomicReference<String> pending = new AtomicReference<>();
 
     @Override
     public void start(Stage stage) throws Exception {
@@ -40,9 +58,14 @@ public class CalculatorGUI extends Application {
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        worker.shutdownNow();
+    }
+
     Pane createButtons() {
         GridPane p = new GridPane();
-        String labels = "123+C" + "456-^" + "789* " + "0()/=";
+        String labels = "123+C" + "456-^" + "789*<" + "0()/=";
         int i = 0;
         for (int r = 0; r < 4; r++) {
             for (int c = 0; c < 5; c++) {
@@ -62,6 +85,7 @@ public class CalculatorGUI extends Application {
     }
 
     private TextField t;
+    private Label preview;
 
     Pane createDisplayPane() {
         VBox v = new VBox();
@@ -69,7 +93,10 @@ public class CalculatorGUI extends Application {
         t = new TextField();
         t.setPrefColumnCount(12);
         t.setFont(Font.font("Verdana", 16));
-        v.getChildren().add(t);
+        preview = new Label();
+        preview.setFont(Font.font("Verdana", 12));
+        t.textProperty().addListener((obs, old, text) -> requestPreview(text));
+        v.getChildren().addAll(t, preview);
         return v;
 
     }
@@ -78,21 +105,49 @@ public class CalculatorGUI extends Application {
         String text = ((Button) evt.getSource()).getText();
         switch (text) {
             case "=":
-                try {
-                    double d = calculator.eval(t.getText());
-                    t.setText(String.valueOf(d));
-                } catch (Exception e) {
-                    Alert a = new Alert(Alert.AlertType.WARNING);
-                    a.setTitle("Varning");
-                    a.setContentText("Något är fel i uttrycket");
-                    a.showAndWait();
-                }
+                String expr = t.getText();
+                worker.execute(() -> {
+                    Result r = calculator.evaluate(expr);
+                    Platform.runLater(() -> showResult(r));
+                });
                 break;
             case "C":
                 t.setText("");
                 break;
+            case "<":
+                String current = t.getText();
+                if (!current.isEmpty()) {
+                    t.setText(current.substring(0, current.length() - 1));
+                }
+                break;
             default:
                 t.setText(t.getText() + text);
         }
     }
+
+    void showResult(Result r) {
+        if (r.isOk()) {
+            t.setText(String.valueOf(r.value));
+        } else {
+            Alert a = new Alert(Alert.AlertType.WARNING);
+            a.setTitle("Varning");
+            a.setContentText("Något är fel i uttrycket");
+            a.showAndWait();
+        }
+    }
+
+    // Called on the JavaFX thread, evaluates on the worker
+    void requestPreview(String text) {
+        if (pending.getAndSet(text) == null) {
+            worker.execute(this::updatePreview);
+        }
+    }
+
+    // On the worker, shows the preview of the latest text
+    void updatePreview() {
+        String text = pending.getAndSet(null);
+        Result r = incremental.setText(text).preview();
+        String shown = r.isOk() ? "= " + r.value : "";
+        Platform.runLater(() -> preview.setText(shown));
+    }
 }
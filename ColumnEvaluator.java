@@ -0,0 +1,218 @@
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/*
+ *   Evaluates a CompiledExpression over many rows, one instruction at a time
+ *   for a whole block of rows
+ *
+ *   Each stack slot is a double[BLOCK] column, so an instruction is a plain
+ *   counted loop over arrays. For + - * / and prefix minus these loops have no
+ *   branches or calls and are vectorized by the JIT (SIMD lanes on AVX2/AVX-512
+ *   or NEON), ^ and registered operators fall back to a scalar loop. So do
+ *   function calls, apart from sqrt, abs and two argument min and max, whose
+ *   loops vectorize too. Division by zero is detected per block and reported
+ *   like the scalar engine.
+ *
+ *   Input columns are double[] or DoubleBuffer, the latter may be direct
+ *   (off-heap). A ColumnEvaluator keeps its block buffers between calls and is
+ *   not thread-safe, use one per thread.
+ */
+final class ColumnEvaluator {
+
+    static final int BLOCK = 1024;
+
+    private final CompiledExpression expr;
+    private final int[] code;
+    private final double[] constants;
+    private final double[][] stack;
+    private final int tempBase;
+    private final double[] args;        // One row of call arguments
+
+    ColumnEvaluator(CompiledExpression expr) {
+        this.expr = expr;
+        this.code = expr.code();
+        this.constants = expr.constants();
+        this.stack = new double[Math.max(1, expr.stackSize())][BLOCK];
+        this.tempBase = expr.tempBase();
+        int maxArgs = 0;
+        for (int instr : code) {
+            if ((instr & CompiledExpression.OP_MASK) == CompiledExpression.CALL) {
+                maxArgs = Math.max(maxArgs, CompiledExpression.arity(instr));
+            }
+        }
+        this.args = new double[maxArgs];
+    }
+
+    // out[row] = value with variable slot k bound to columns[k][row], for
+    // rows from (inclusive) to (exclusive)
+    void eval(double[][] columns, double[] out, int from, int to) {
+        expr.checkBound(columns.length);
+        for (int row = from; row < to; row += BLOCK) {
+            int n = Math.min(BLOCK, to - row);
+            double[] result = evalBlock(columns, null, row, n);
+            System.arraycopy(result, 0, out, row, n);
+        }
+    }
+
+    // As eval(double[][], ...) with columns and out as (possibly direct)
+    // buffers, rows are indexed from position 0 of each buffer
+    void eval(DoubleBuffer[] columns, DoubleBuffer out, int from, int to) {
+        expr.checkBound(columns.length);
+        for (int row = from; row < to; row += BLOCK) {
+            int n = Math.min(BLOCK, to - row);
+            double[] result = evalBlock(null, columns, row, n);
+            out.put(row, result, 0, n);
+        }
+    }
+
+    // Evaluate n rows starting at row, result is in the returned block
+    private double[] evalBlock(double[][] arrays, DoubleBuffer[] buffers, int row, int n) {
+        int sp = 0;
+        for (int instr : code) {
+            int arg = instr >>> CompiledExpression.OP_BITS;
+            switch (instr & CompiledExpression.OP_MASK) {
+                case CompiledExpression.CONST:
+                    Arrays.fill(stack[sp++], 0, n, constants[arg]);
+                    break;
+                case CompiledExpression.VAR:
+                    if (arrays != null) {
+                        System.arraycopy(arrays[arg], row, stack[sp++], 0, n);
+                    } else {
+                        buffers[arg].get(row, stack[sp++], 0, n);
+                    }
+                    break;
+                case CompiledExpression.STORE:
+                    System.arraycopy(stack[sp - 1], 0, stack[tempBase + arg], 0, n);
+                    break;
+                case CompiledExpression.LOAD:
+                    System.arraycopy(stack[tempBase + arg], 0, stack[sp++], 0, n);
+                    break;
+                case CompiledExpression.NEG:
+                    neg(stack[sp - 1], n);
+                    break;
+                case CompiledExpression.UNARY:
+                    unary(Operator.byId(arg), stack[sp - 1], n);
+                    break;
+                case CompiledExpression.CALL:
+                    int argc = arg & CompiledExpression.ARGC_MASK;
+                    sp -= argc;
+                    call(CompiledExpression.function(arg), sp, argc, n);
+                    sp++;
+                    break;
+                default:
+                    sp--;
+                    binary(instr, stack[sp - 1], stack[sp], n);
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    // a = a op b, element wise
+    private static void binary(int instr, double[] a, double[] b, int n) {
+        switch (instr & CompiledExpression.OP_MASK) {
+            case CompiledExpression.ADD:
+                for (int i = 0; i < n; i++) {
+                    a[i] = a[i] + b[i];
+                }
+                break;
+            case CompiledExpression.SUB:
+                for (int i = 0; i < n; i++) {
+                    a[i] = a[i] - b[i];
+                }
+                break;
+            case CompiledExpression.MUL:
+                for (int i = 0; i < n; i++) {
+                    a[i] = a[i] * b[i];
+                }
+                break;
+            case CompiledExpression.DIV:
+                checkNoZero(b, n);
+                for (int i = 0; i < n; i++) {
+                    a[i] = a[i] / b[i];
+                }
+                break;
+            case CompiledExpression.POW:
+                for (int i = 0; i < n; i++) {
+                    a[i] = MathFunction.power(a[i], b[i]);
+                }
+                break;
+            case CompiledExpression.MOD:
+                checkNoZero(b, n);
+                for (int i = 0; i < n; i++) {
+                    a[i] = a[i] % b[i];
+                }
+                break;
+            case CompiledExpression.BINARY:
+                Operator op = Operator.byId(instr >>> CompiledExpression.OP_BITS);
+                for (int i = 0; i < n; i++) {
+                    a[i] = op.apply(a[i], b[i]);
+                }
+                break;
+            default:
+                throw new RuntimeException(Calculator.OP_NOT_FOUND);
+        }
+    }
+
+    private static void neg(double[] a, int n) {
+        for (int i = 0; i < n; i++) {
+            a[i] = -a[i];
+        }
+    }
+
+    private static void unary(Operator op, double[] a, int n) {
+        for (int i = 0; i < n; i++) {
+            a[i] = op.apply(a[i]);
+        }
+    }
+
+    // stack[at] = fn(stack[at], ..., stack[at + argc - 1]), element wise
+    private void call(MathFunction fn, int at, int argc, int n) {
+        double[] a = stack[at];
+        if (fn == MathFunction.SQRT) {
+            for (int i = 0; i < n; i++) {
+                a[i] = Math.sqrt(a[i]);
+            }
+        } else if (fn == MathFunction.ABS) {
+            for (int i = 0; i < n; i++) {
+                a[i] = Math.abs(a[i]);
+            }
+        } else if (fn == MathFunction.MIN && argc == 2) {
+            double[] b = stack[at + 1];
+            for (int i = 0; i < n; i++) {
+                a[i] = Math.min(a[i], b[i]);
+            }
+        } else if (fn == MathFunction.MAX && argc == 2) {
+            double[] b = stack[at + 1];
+            for (int i = 0; i < n; i++) {
+                a[i] = Math.max(a[i], b[i]);
+            }
+        } else if (fn.isUnary()) {
+            for (int i = 0; i < n; i++) {
+                a[i] = fn.apply(a[i]);
+            }
+        } else if (fn.isBinary()) {
+            double[] b = stack[at + 1];
+            for (int i = 0; i < n; i++) {
+                a[i] = fn.apply(a[i], b[i]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                for (int k = 0; k < argc; k++) {
+                    args[k] = stack[at + k][i];
+                }
+                a[i] = fn.apply(args, 0, argc);
+            }
+        }
+    }
+
+    private static void checkNoZero(double[] b, int n) {
+        int zeros = 0;
+        for (int i = 0; i < n; i++) {
+            zeros += b[i] == 0 ? 1 : 0;
+        }
+        if (zeros != 0) {
+            throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+        }
+    }
+}
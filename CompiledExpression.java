@@ -0,0 +1,624 @@
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/*
+ *   An expression compiled once into a postfix program that can be evaluated
+ *   any number of times.
+ *
+ *   The program is kept in primitive arrays: each instruction in code holds the
+ *   opcode in the low 8 bits and an operand index above it (for CONST an index
+ *   into constants, for VAR a variable slot). Evaluation runs on a double[]
+ *   stack from an EvalContext, pooled or passed in, so nothing is allocated
+ *   per call.
+ *
+ *   Variables get slots in order of first appearance, see variables(). Values
+ *   are bound per call, one row with eval(double[]) or many rows of columnar
+ *   input with evalColumns.
+ *
+ *   Expressions evaluated more than jitThreshold() times switch to a method
+ *   handle tree built by Jit, which the JVM compiles like hand written code.
+ *   An EvalContext in fast math runs fast() instead, the same program with ^,
+ *   exp, log and pow calling the approximations of MathFunction.
+ *
+ *   evaluate returns a Result, with the error and its position in the source
+ *   (kept per instruction in positions) when there is one, and throws nothing.
+ *   eval is the same but throws IllegalArgumentException. Parser.tryParse
+ *   gives an invalid expression for bad input, which only holds the error.
+ *
+ *   Objects are immutable (apart from that switch) and may be shared between
+ *   threads.
+ */
+final class CompiledExpression {
+
+    // Opcodes
+    static final int CONST = 0;
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int DIV = 4;
+    static final int POW = 5;
+    static final int MOD = 6;
+    static final int NEG = 7;
+    // Registered operators, operand is the Operator id
+    static final int UNARY = 8;
+    static final int BINARY = 9;
+    static final int VAR = 10;
+    // Temporaries for shared subexpressions (see Optimizer), kept in the
+    // stack array after the first tempBase() slots. STORE copies the top of
+    // the stack, it does not pop.
+    static final int STORE = 11;
+    static final int LOAD = 12;
+    // A MathFunction call, operand is the function id and, in the low
+    // ARGC_BITS, the number of arguments it pops
+    static final int CALL = 13;
+
+    static final int OP_BITS = 8;
+    static final int OP_MASK = (1 << OP_BITS) - 1;
+    static final int ARGC_BITS = 8;
+    static final int ARGC_MASK = (1 << ARGC_BITS) - 1;
+
+    // Evaluations before switching to Jit code, 0 turns the Jit off
+    private static volatile int jitThreshold = Integer.getInteger("calculator.jit.threshold", 10_000);
+
+
+    private final int[] code;
+    private final double[] constants;
+    private final int maxStack;
+    private final String[] variables;
+    private final int temps;
+    private final int[] positions;      // Source offset per instruction, -1 if unknown
+    private final String error;         // For an invalid expression, else null
+    private final int errorPosition;
+    private volatile MethodHandle jitted;
+    private volatile CompiledExpression fast;
+    private int invocations;        // Racy, only has to reach jitThreshold about once
+
+    private CompiledExpression(int[] code, double[] constants, int maxStack, String[] variables, int temps,
+                               int[] positions, String error, int errorPosition) {
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+        this.variables = variables;
+        this.temps = temps;
+        this.positions = positions;
+        this.error = error;
+        this.errorPosition = errorPosition;
+    }
+
+    // An expression that could not be compiled, evaluating it gives error
+    static CompiledExpression invalid(String error, int position) {
+        return new CompiledExpression(new int[0], new double[0], 0, new String[0], 0, new int[0], error, position);
+    }
+
+    // A program from the code(), constants(), variables() and positions() of
+    // another, as read back by ExpressionStore. Checked as the Builder would,
+    // without copying the arrays.
+    static CompiledExpression of(int[] code, double[] constants, String[] variables, int[] positions) {
+        if (positions.length != code.length) {
+            throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+        }
+        int depth = 0;
+        int maxStack = 0;
+        int temps = 0;
+        for (int instr : code) {
+            int op = instr & OP_MASK;
+            int arg = instr >>> OP_BITS;
+            int arity = arity(instr);
+            if (depth < arity || (op == STORE && depth == 0)) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+            }
+            if (op > CALL || (op == CONST && arg >= constants.length) || (op == VAR && arg >= variables.length)
+                    || (op == LOAD && arg >= temps) || (op == CALL && !isCall(arg))) {
+                throw new IllegalArgumentException(Calculator.OP_NOT_FOUND);
+            }
+            if (op == STORE) {
+                temps = Math.max(temps, arg + 1);
+            } else {
+                depth += 1 - arity;
+                maxStack = Math.max(maxStack, depth);
+            }
+        }
+        if (depth != 1) {
+            throw new IllegalArgumentException(depth == 0 ? Calculator.MISSING_OPERAND : Calculator.MISSING_OPERATOR);
+        }
+        return new CompiledExpression(code, constants, maxStack, variables, temps, positions, null, -1);
+    }
+
+    // A registered function called with an argument count it accepts
+    private static boolean isCall(int arg) {
+        return arg >>> ARGC_BITS < MathFunction.count() && function(arg).accepts(arg & ARGC_MASK);
+    }
+
+    // Function of a CALL operand
+    static MathFunction function(int arg) {
+        return MathFunction.byId(arg >>> ARGC_BITS);
+    }
+
+    // Build from the postfix list produced by Calculator.infix2Postfix, where
+    // a call is the function name with the argument count, as "max(3)"
+    static CompiledExpression of(List<String> postfix) {
+        Builder builder = new Builder();
+        for (String token : postfix) {
+            Operator op = Operator.byToken(token);
+            if (op != null) {
+                builder.operator(op);
+            } else if (token.endsWith(")")) {
+                int paren = token.indexOf('(');
+                MathFunction fn = MathFunction.byName(token.substring(0, paren));
+                if (fn == null) {
+                    throw new IllegalArgumentException(Calculator.OP_NOT_FOUND);
+                }
+                builder.call(fn, Integer.parseInt(token.substring(paren + 1, token.length() - 1)));
+            } else if (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_') {
+                builder.variable(token);
+            } else {
+                builder.constant(Double.parseDouble(token));
+            }
+        }
+        return builder.build();
+    }
+
+    // Size of the stack needed by run, including temporaries
+    int stackSize() {
+        return maxStack + temps;
+    }
+
+    // Index of the first temporary in the stack
+    int tempBase() {
+        return maxStack;
+    }
+
+    // Number of values an instruction pops
+    static int arity(int instr) {
+        switch (instr & OP_MASK) {
+            case CONST:
+            case VAR:
+            case LOAD:
+            case STORE:
+                return 0;
+            case NEG:
+            case UNARY:
+                return 1;
+            case CALL:
+                return (instr >>> OP_BITS) & ARGC_MASK;
+            default:
+                return 2;
+        }
+    }
+
+    // Variable names, index is the slot
+    List<String> variables() {
+        return Arrays.asList(variables.clone());
+    }
+
+    // Slot of variable name, -1 if the expression does not use it
+    int slot(String name) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean isValid() {
+        return error == null;
+    }
+
+    // Why the expression is invalid, null if it is valid
+    String error() {
+        return error;
+    }
+
+    // Evaluate an expression without variables
+    Result evaluate() {
+        return evaluate(NO_VARIABLES);
+    }
+
+    Result evaluate(EvalContext context) {
+        return evaluate(NO_VARIABLES, context);
+    }
+
+    // Evaluate with vars[slot] as the value of each variable
+    Result evaluate(double[] vars) {
+        EvalContext context = EvalContext.acquire();
+        try {
+            return evaluate(vars, context);
+        } finally {
+            context.release();
+        }
+    }
+
+    // As evaluate(vars), using the stack of context
+    Result evaluate(double[] vars, EvalContext context) {
+        if (context.fastMath() && fast() != this) {
+            return fast.evaluate(vars, context);
+        }
+        if (error != null) {
+            return Result.error(error, errorPosition);
+        }
+        if (vars.length < variables.length) {
+            return Result.error(Calculator.MISSING_OPERAND, positionOfVariable(vars.length));
+        }
+        double[] stack = context.stack(maxStack + temps);
+        int pc;
+        try {
+            pc = exec(stack, vars);
+        } catch (RuntimeException e) {
+            // Registered operators may throw
+            return Result.error(e.getMessage());
+        }
+        return pc < 0 ? Result.ok(stack[0]) : Result.error(errorAt(pc), positionAt(pc));
+    }
+
+    // As evaluate(), but errors are thrown
+    double eval() {
+        return eval(NO_VARIABLES);
+    }
+
+    double eval(double[] vars) {
+        EvalContext context = EvalContext.acquire();
+        try {
+            return eval(vars, context);
+        } finally {
+            context.release();
+        }
+    }
+
+    double eval(double[] vars, EvalContext context) {
+        if (context.fastMath() && fast() != this) {
+            return fast.eval(vars, context);
+        }
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        checkBound(vars.length);
+        double[] stack = context.stack(maxStack + temps);
+        int pc = exec(stack, vars);
+        if (pc >= 0) {
+            throw new IllegalArgumentException(errorAt(pc));
+        }
+        return stack[0];
+    }
+
+    private static final double[] NO_VARIABLES = new double[0];
+
+    // Leaves the value in stack[0] and returns -1, or the pc of the failing
+    // instruction
+    private int exec(double[] stack, double[] vars) {
+        MethodHandle mh = jitted;
+        if (mh != null) {
+            try {
+                stack[0] = (double) mh.invokeExact(vars);
+                return -1;
+            } catch (Operator.Fault f) {
+                // Run again to find the instruction, without a new exception
+                return run(stack, vars);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+        int threshold = jitThreshold;
+        if (threshold > 0 && ++invocations == threshold) {
+            jitted = Jit.compile(this);
+        }
+        return run(stack, vars);
+    }
+
+    // The error an instruction of run failed with
+    private String errorAt(int pc) {
+        int op = code[pc] & OP_MASK;
+        return op == DIV || op == MOD ? Calculator.DIV_BY_ZERO : Calculator.OP_NOT_FOUND;
+    }
+
+    private int positionAt(int pc) {
+        return positions != null ? positions[pc] : -1;
+    }
+
+    // Where the first variable from slot on is used
+    private int positionOfVariable(int slot) {
+        for (int pc = 0; pc < code.length; pc++) {
+            if ((code[pc] & OP_MASK) == VAR && code[pc] >>> OP_BITS >= slot) {
+                return positionAt(pc);
+            }
+        }
+        return -1;
+    }
+
+    // The program for fast math: POW and calls of functions with a fast
+    // sibling call that instead. This expression if there are none.
+    CompiledExpression fast() {
+        CompiledExpression f = fast;
+        if (f == null) {
+            int[] fastCode = code;
+            for (int pc = 0; pc < code.length; pc++) {
+                int instr = code[pc];
+                int op = instr & OP_MASK;
+                MathFunction fn = op == POW ? MathFunction.POW
+                        : op == CALL ? function(instr >>> OP_BITS) : null;
+                if (fn != null && fn.fast() != fn) {
+                    if (fastCode == code) {
+                        fastCode = code.clone();
+                    }
+                    fastCode[pc] = fn.fast().instruction(op == POW ? 2 : (instr >>> OP_BITS) & ARGC_MASK);
+                }
+            }
+            f = fastCode == code ? this : new CompiledExpression(fastCode, constants, maxStack, variables, temps,
+                    positions, error, errorPosition);
+            f.fast = f;
+            fast = f;
+        }
+        return f;
+    }
+
+    static int jitThreshold() {
+        return jitThreshold;
+    }
+
+    static void setJitThreshold(int threshold) {
+        jitThreshold = threshold;
+    }
+
+    boolean isJitted() {
+        return jitted != null;
+    }
+
+    // out[row] = value with variable slot k bound to columns[k][row], for
+    // rows from (inclusive) to (exclusive). Runs block by block on a
+    // ColumnEvaluator, the result is the same as evalRows.
+    void evalColumns(double[][] columns, double[] out, int from, int to) {
+        new ColumnEvaluator(this).eval(columns, out, from, to);
+    }
+
+    // As evalColumns, but running the whole program once per row
+    void evalRows(double[][] columns, double[] out, int from, int to) {
+        checkBound(columns.length);
+        EvalContext context = EvalContext.acquire();
+        try {
+            double[] stack = context.stack(maxStack + temps);
+            double[] vars = new double[variables.length];
+            for (int row = from; row < to; row++) {
+                for (int k = 0; k < vars.length; k++) {
+                    vars[k] = columns[k][row];
+                }
+                int pc = run(stack, vars);
+                if (pc >= 0) {
+                    throw new IllegalArgumentException(errorAt(pc));
+                }
+                out[row] = stack[0];
+            }
+        } finally {
+            context.release();
+        }
+    }
+
+    // Columns by variable name, all of the same length
+    double[] evalColumns(Map<String, double[]> columns) {
+        double[][] bound = new double[variables.length][];
+        int rows = columns.isEmpty() ? 0 : columns.values().iterator().next().length;
+        for (int k = 0; k < bound.length; k++) {
+            bound[k] = columns.get(variables[k]);
+            if (bound[k] == null || bound[k].length != rows) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+            }
+        }
+        double[] out = new double[rows];
+        evalColumns(bound, out, 0, rows);
+        return out;
+    }
+
+    // The program, shared, must not be modified
+    int[] code() {
+        return code;
+    }
+
+    // The constants, shared, must not be modified
+    double[] constants() {
+        return constants;
+    }
+
+    // Source offset of each instruction, -1 where unknown. Shared, must not
+    // be modified.
+    int[] positions() {
+        return positions;
+    }
+
+    // MISSING_OPERAND unless n values bind all variables, or the error of
+    // an invalid expression
+    void checkBound(int n) {
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        if (n < variables.length) {
+            throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+        }
+    }
+
+
+
+    // Evaluate using the given stack, which must hold at least stackSize()
+    // values. Leaves the value in stack[0] and returns -1, or returns the pc
+    // of the instruction that failed (a division by zero).
+    int run(double[] stack, double[] vars) {
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            int instr = code[pc];
+            switch (instr & OP_MASK) {
+                case CONST:
+                    stack[sp++] = constants[instr >>> OP_BITS];
+                    break;
+                case VAR:
+                    stack[sp++] = vars[instr >>> OP_BITS];
+                    break;
+                case STORE:
+                    stack[maxStack + (instr >>> OP_BITS)] = stack[sp - 1];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[maxStack + (instr >>> OP_BITS)];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    if (stack[sp] == 0) {
+                        return pc;
+                    }
+                    stack[sp - 1] = stack[sp - 1] / stack[sp];
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = MathFunction.power(stack[sp - 1], stack[sp]);
+                    break;
+                case MOD:
+                    sp--;
+                    if (stack[sp] == 0) {
+                        return pc;
+                    }
+                    stack[sp - 1] = stack[sp - 1] % stack[sp];
+                    break;
+                case NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case UNARY:
+                    stack[sp - 1] = Operator.byId(instr >>> OP_BITS).apply(stack[sp - 1]);
+                    break;
+                case BINARY:
+                    sp--;
+                    stack[sp - 1] = Operator.byId(instr >>> OP_BITS).apply(stack[sp - 1], stack[sp]);
+                    break;
+                case CALL:
+                    int argc = (instr >>> OP_BITS) & ARGC_MASK;
+                    sp -= argc - 1;
+                    stack[sp - 1] = function(instr >>> OP_BITS).apply(stack, sp - 1, argc);
+                    break;
+                default:
+                    return pc;
+            }
+        }
+        return -1;
+    }
+
+    // --- Emits a program one postfix item at a time -----------
+
+    static final class Builder {
+        private int[] code = new int[16];
+        private int[] positions = new int[16];
+        private int position = -1;
+        private double[] constants = new double[8];
+        private int size;
+        private int nConst;
+        private int depth;
+        private int maxStack;
+        private final List<String> variables = new ArrayList<>();
+        private int temps;
+
+        Builder constant(double value) {
+            if (nConst == constants.length) {
+                constants = Arrays.copyOf(constants, nConst * 2);
+            }
+            constants[nConst] = value;
+            emit(CONST | (nConst << OP_BITS));
+            nConst++;
+            depth++;
+            maxStack = Math.max(maxStack, depth);
+            return this;
+        }
+
+        // Source offset of the instructions emitted from now on
+        Builder at(int position) {
+            this.position = position;
+            return this;
+        }
+
+        // Give name the next slot without using it
+        Builder declare(String name) {
+            if (!variables.contains(name)) {
+                variables.add(name);
+            }
+            return this;
+        }
+
+        Builder variable(String name) {
+            declare(name);
+            emit(VAR | (variables.indexOf(name) << OP_BITS));
+            depth++;
+            maxStack = Math.max(maxStack, depth);
+            return this;
+        }
+
+        Builder operator(Operator op) {
+            if (depth < op.arity) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+            }
+            return instruction(op.instruction());
+        }
+
+        // Call fn on the top count values
+        Builder call(MathFunction fn, int count) {
+            if (!fn.accepts(count)) {
+                throw new IllegalArgumentException(Calculator.WRONG_ARGUMENTS);
+            }
+            return instruction(fn.instruction(count));
+        }
+
+        // Any operator instruction, as found in code()
+        Builder instruction(int instr) {
+            int arity = arity(instr);
+            if (depth < arity) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+            }
+            emit(instr);
+            depth -= arity - 1;
+            maxStack = Math.max(maxStack, depth);
+            return this;
+        }
+
+        // Copy the top of the stack to temporary temp
+        Builder store(int temp) {
+            emit(STORE | (temp << OP_BITS));
+            temps = Math.max(temps, temp + 1);
+            return this;
+        }
+
+        Builder load(int temp) {
+            emit(LOAD | (temp << OP_BITS));
+            depth++;
+            maxStack = Math.max(maxStack, depth);
+            return this;
+        }
+
+        private void emit(int instr) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size] = position;
+            code[size++] = instr;
+        }
+
+        CompiledExpression build() {
+            if (depth == 0) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+            } else if (depth > 1) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+            }
+            return new CompiledExpression(Arrays.copyOf(code, size), Arrays.copyOf(constants, nConst), maxStack,
+                    variables.toArray(new String[0]), temps, Arrays.copyOf(positions, size), null, -1);
+        }
+    }
+}
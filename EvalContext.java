@@ -0,0 +1,155 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ *   The reusable state of one evaluation: the value stack (with the
+ *   temporaries after it), the stacks of Numeric and a Parser, whose
+ *   operator stack and Lexer are reused too. All of it is arrays that grow
+ *   when needed and are kept after that.
+ *
+ *   A context is used by one thread at a time. Pass one explicitly, or take
+ *   one with acquire and give it back with release. The pool has a few
+ *   slots per core, not one per thread: threads pick a slot by their id and
+ *   hold a context only during an evaluation, so a million virtual threads
+ *   share as many contexts as there are evaluations running at once. A
+ *   ThreadLocal would hold one per thread.
+ *
+ *   A context may ask for fast math, evaluations on it then use the bounded
+ *   error approximations of MathFunction (see CompiledExpression.fast()).
+ *   Off by default and again when the context goes back to the pool.
+ *
+ *   Creating a context or growing its stack is counted (created(), grown())
+ *   and recorded as a calculator.EvalContextAllocation JFR event. Neither
+ *   happens in steady state, which is how to check that evaluation does not
+ *   allocate.
+ */
+final class EvalContext {
+
+    // Slots are this many references apart, one cache line, so threads
+    // taking neighbouring slots do not contend
+    private static final int STRIDE = 16;
+    private static final int SLOTS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+    private static final AtomicReferenceArray<EvalContext> POOL = new AtomicReferenceArray<>(SLOTS * STRIDE);
+    // Slots tried on acquire and release before giving up
+    private static final int PROBES = 2;
+
+    private static final LongAdder CREATED = new LongAdder();
+    private static final LongAdder GROWN = new LongAdder();
+
+    private double[] stack = new double[16];
+    private long[] longs = new long[0];
+    private Object[] objects = new Object[0];
+    final Parser parser = new Parser();
+    private boolean fastMath;
+
+    EvalContext() {
+        CREATED.increment();
+        Allocation.record("create", stack.length * Double.BYTES);
+    }
+
+    // A context from the pool, or a new one if the slots tried are taken
+    static EvalContext acquire() {
+        int slot = slot();
+        for (int i = 0; i < PROBES; i++) {
+            EvalContext context = POOL.getAndSet(((slot + i) & (SLOTS - 1)) * STRIDE, null);
+            if (context != null) {
+                return context;
+            }
+        }
+        return new EvalContext();
+    }
+
+    // Give the context back, it must not be used after this
+    void release() {
+        fastMath = false;
+        int slot = slot();
+        for (int i = 0; i < PROBES; i++) {
+            if (POOL.compareAndSet(((slot + i) & (SLOTS - 1)) * STRIDE, null, this)) {
+                return;
+            }
+        }
+    }
+
+    private static int slot() {
+        return (int) Thread.currentThread().getId() & (SLOTS - 1);
+    }
+
+    // The value stack, at least size long
+    double[] stack(int size) {
+        if (stack.length < size) {
+            int bytes = Math.max(size, stack.length * 2) * Double.BYTES;
+            stack = Arrays.copyOf(stack, bytes / Double.BYTES);
+            GROWN.increment();
+            Allocation.record("grow", bytes);
+        }
+        return stack;
+    }
+
+    // The integer stack of Numeric, at least size long
+    long[] longs(int size) {
+        if (longs.length < size) {
+            int bytes = Math.max(size, longs.length * 2) * Long.BYTES;
+            longs = Arrays.copyOf(longs, bytes / Long.BYTES);
+            GROWN.increment();
+            Allocation.record("grow", bytes);
+        }
+        return longs;
+    }
+
+    // The number stack of Numeric, at least size long. Callers null out
+    // what they stored before release, the pool keeps no numbers alive
+    Object[] objects(int size) {
+        if (objects.length < size) {
+            int length = Math.max(size, objects.length * 2);
+            objects = Arrays.copyOf(objects, length);
+            GROWN.increment();
+            Allocation.record("grow", length * Integer.BYTES);
+        }
+        return objects;
+    }
+
+    boolean fastMath() {
+        return fastMath;
+    }
+
+    // Use the fast approximations of exp, log and pow (and ^) or not
+    EvalContext fastMath(boolean on) {
+        fastMath = on;
+        return this;
+    }
+
+    static long created() {
+        return CREATED.sum();
+    }
+
+    static long grown() {
+        return GROWN.sum();
+    }
+
+    @Name("calculator.EvalContextAllocation")
+    @Label("Evaluation context allocation")
+    @Category("Calculator")
+    @Description("An EvalContext was created or its stack grown, none in steady state")
+    static final class Allocation extends jdk.jfr.Event {
+        @Label("Reason")
+        String reason;
+
+        @Label("Bytes")
+        int bytes;
+
+        static void record(String reason, int bytes) {
+            Allocation event = new Allocation();
+            if (event.isEnabled()) {
+                event.reason = reason;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+/*
+ *   A Flow stage evaluating a stream of expressions, one Result per expression
+ *   and in the same order
+ *
+ *   Demand is bounded: at most the buffer capacity is requested upstream, and
+ *   one more only after a result has been handed on. Handing on blocks while
+ *   a subscriber's buffer is full, so a slow subscriber slows down the
+ *   upstream instead of growing a queue. Results are delivered to subscribers
+ *   on the executor, by default Workers.shared() (virtual threads when the JDK
+ *   has them).
+ *
+ *   Errors in expressions are Results, the stream only fails when the
+ *   upstream does.
+ */
+class EvalProcessor extends SubmissionPublisher<Result> implements Flow.Processor<String, Result> {
+
+    private final Calculator calculator;
+    private Flow.Subscription subscription;
+
+    EvalProcessor(Calculator calculator) {
+        this(calculator, Workers.shared(), Flow.defaultBufferSize());
+    }
+
+    EvalProcessor(Calculator calculator, Executor executor, int maxBufferCapacity) {
+        super(executor, maxBufferCapacity);
+        this.calculator = calculator;
+    }
+
+    // Results not yet consumed by the slowest subscriber
+    int queueDepth() {
+        return estimateMaximumLag();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(getMaxBufferCapacity());
+    }
+
+    @Override
+    public void onNext(String expr) {
+        submit(calculator.evaluate(expr));
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        closeExceptionally(error);
+    }
+
+    @Override
+    public void onComplete() {
+        close();
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+ *   A bounded, thread-safe LRU cache of compiled expressions
+ *
+ *   Keys are the normalized expression text (see normalize). The cache is split
+ *   into segments, each an access ordered LinkedHashMap guarded by its own lock,
+ *   so threads working on different expressions seldom wait for each other.
+ *   Compilation happens outside the lock.
+ *
+ *   Registering or unregistering an operator or function changes what an
+ *   expression compiles to, valid or not, so each segment drops its entries
+ *   when it sees the operator and function tables have changed since.
+ */
+final class ExpressionCache {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // maxSize 0 disables caching
+    ExpressionCache(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative");
+        }
+        this.maxSize = maxSize;
+        int n = 1;
+        while (n < MAX_SEGMENTS && n * 2 <= maxSize / 8) {
+            n *= 2;
+        }
+        segments = new Segment[n];
+        int perSegment = (maxSize + n - 1) / n;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    // Cached program for expr, compiled with compiler on a miss
+    CompiledExpression get(String expr, Function<String, CompiledExpression> compiler) {
+        if (maxSize == 0) {
+            misses.increment();
+            return compiler.apply(normalize(expr));
+        }
+        String key = normalize(expr);
+        Segment segment = segmentFor(key);
+        // Read before compiling, so a program compiled while the tables
+        // change is stored under the old version and dropped on the next get
+        long version = grammarVersion();
+        CompiledExpression compiled;
+        synchronized (segment) {
+            compiled = segment.current(version).get(key);
+        }
+        if (compiled != null) {
+            hits.increment();
+            return compiled;
+        }
+        misses.increment();
+        compiled = compiler.apply(key);
+        synchronized (segment) {
+            if (segment.version != version) {
+                return compiled;
+            }
+            CompiledExpression other = segment.putIfAbsent(key, compiled);
+            return other != null ? other : compiled;
+        }
+    }
+
+    // Add or replace the entry for expr, as if it had just been compiled
+    void put(String expr, CompiledExpression compiled) {
+        if (maxSize == 0) {
+            return;
+        }
+        String key = normalize(expr);
+        Segment segment = segmentFor(key);
+        long version = grammarVersion();
+        synchronized (segment) {
+            if (segment.current(version).version == version) {
+                segment.put(key, compiled);
+            }
+        }
+    }
+
+    // A copy of all entries, least recently used first within each segment,
+    // see ExpressionStore
+    List<Map.Entry<String, CompiledExpression>> snapshot() {
+        List<Map.Entry<String, CompiledExpression>> entries = new ArrayList<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Map.Entry<String, CompiledExpression> e : segment.entrySet()) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(e));
+                }
+            }
+        }
+        return entries;
+    }
+
+    // Both counters only grow, so their sum changes whenever either does
+    private static long grammarVersion() {
+        return (long) Operator.version() + MathFunction.version();
+    }
+
+    // Top bits of a multiplicative hash. The low bits pick the bucket inside
+    // the segment's map, using them here too would leave most buckets empty.
+    private Segment segmentFor(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return segments[(h >>> 28) & (segments.length - 1)];
+    }
+
+    // Trim and collapse runs of whitespace to a single space. Whitespace
+    // separates tokens but its amount never matters, so "1 +  2" and " 1 + 2"
+    // share an entry. Returns expr itself when it already is normalized.
+    static String normalize(String expr) {
+        int len = expr.length();
+        boolean clean = len == 0 || (!Character.isWhitespace(expr.charAt(0))
+                && !Character.isWhitespace(expr.charAt(len - 1)));
+        for (int i = 1; clean && i < len; i++) {
+            char ch = expr.charAt(i);
+            clean = !Character.isWhitespace(ch) || (ch == ' ' && !Character.isWhitespace(expr.charAt(i - 1)));
+        }
+        if (clean) {
+            return expr;
+        }
+        StringBuilder sb = new StringBuilder(len);
+        boolean space = false;
+        for (int i = 0; i < len; i++) {
+            char ch = expr.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    // The offset in expr of the character at offset position in normalize(expr),
+    // expr.length() for the end
+    static int sourcePosition(String expr, int position) {
+        int n = 0;
+        boolean space = false;
+        for (int i = 0; i < expr.length(); i++) {
+            if (Character.isWhitespace(expr.charAt(i))) {
+                space = n > 0;
+            } else {
+                if (space) {
+                    n++;
+                    space = false;
+                }
+                if (n++ == position) {
+                    return i;
+                }
+            }
+        }
+        return expr.length();
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionCache[size=" + size() + "/" + maxSize + ", hits=" + hits()
+                + ", misses=" + misses() + ", evictions=" + evictions() + "]";
+    }
+
+    // --- One LRU segment, callers hold its monitor -----------
+
+    private class Segment extends LinkedHashMap<String, CompiledExpression> {
+        private static final long serialVersionUID = 1L;
+
+        final int capacity;
+        long version = grammarVersion();
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        // This segment, emptied first if its entries were compiled with
+        // older operator or function tables than those of version
+        Segment current(long version) {
+            if (this.version < version) {
+                clear();
+                this.version = version;
+            }
+            return this;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ *   Saves the compiled expressions of an ExpressionCache to a file and loads
+ *   them back, so a restarted server starts warm
+ *
+ *   Format, big endian:
+ *     int magic "CALC", int version
+ *     int n, n registered operators used: byte arity, string token
+ *     int n, n functions used: string name
+ *     int n, n entries:
+ *       string key
+ *       int n, n instructions (UNARY and BINARY refer to the operator list,
+ *         CALL to the function list)
+ *       n int source positions, one per instruction
+ *       int n, n double constants
+ *       int n, n string variable names
+ *     int CRC32 of all bytes before it
+ *   A string is an int byte count and UTF-8 bytes.
+ *
+ *   Registered operators get their ids in registration order, which may differ
+ *   between runs, so they are stored by token and looked up again on load.
+ *   Functions are stored by name the same way. Entries using an operator or
+ *   function that is no longer registered (or no longer takes that many
+ *   arguments) are skipped, and so are invalid expressions, which the cache
+ *   also holds.
+ *
+ *   save writes a temporary file and moves it in place, a crash never leaves a
+ *   half written store. load maps the file and copies each program's
+ *   instructions, positions and constants out of the mapping with one bulk get
+ *   each, without read calls or intermediate buffers. The programs cannot run
+ *   on the mapping itself: operator and function ids are renumbered on load,
+ *   and a program must outlive the file it came from.
+ */
+final class ExpressionStore {
+
+    static final int MAGIC = 0x43414C43;        // "CALC"
+    static final int VERSION = 3;
+
+    private ExpressionStore() {
+    }
+
+    // Write all entries of cache to file, returns the number written
+    static int save(ExpressionCache cache, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            int n;
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                n = write(cache.snapshot(), os);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return n;
+        } finally {
+            // Only left when writing or moving failed
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Put the entries in file into cache, returns the number put. In file
+    // order, so a cache smaller than the file keeps the most recently used.
+    static int load(Path file, ExpressionCache cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer, cache);
+        }
+    }
+
+    // --- Writing -----------
+
+    // Returns the number of entries written, invalid expressions are left out
+    static int write(List<Map.Entry<String, CompiledExpression>> all, OutputStream os) throws IOException {
+        List<Map.Entry<String, CompiledExpression>> entries = new ArrayList<>();
+        for (Map.Entry<String, CompiledExpression> e : all) {
+            if (e.getValue().isValid()) {
+                entries.add(e);
+            }
+        }
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(os, 1 << 16), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        // Registered operators in use, by id, with their index in the file
+        Map<Integer, Integer> operators = new HashMap<>();
+        List<Operator> table = new ArrayList<>();
+        for (Map.Entry<String, CompiledExpression> e : entries) {
+            for (int instr : e.getValue().code()) {
+                if (isRegistered(instr) && !operators.containsKey(instr >>> CompiledExpression.OP_BITS)) {
+                    operators.put(instr >>> CompiledExpression.OP_BITS, table.size());
+                    table.add(Operator.byId(instr >>> CompiledExpression.OP_BITS));
+                }
+            }
+        }
+        out.writeInt(table.size());
+        for (Operator op : table) {
+            out.writeByte(op.arity);
+            writeString(out, op.token);
+        }
+
+        // Functions called, by id, with their index in the file
+        Map<Integer, Integer> functions = new HashMap<>();
+        List<MathFunction> called = new ArrayList<>();
+        for (Map.Entry<String, CompiledExpression> e : entries) {
+            for (int instr : e.getValue().code()) {
+                int id = instr >>> (CompiledExpression.OP_BITS + CompiledExpression.ARGC_BITS);
+                if (isCall(instr) && !functions.containsKey(id)) {
+                    functions.put(id, called.size());
+                    called.add(MathFunction.byId(id));
+                }
+            }
+        }
+        out.writeInt(called.size());
+        for (MathFunction fn : called) {
+            writeString(out, fn.name);
+        }
+
+        out.writeInt(entries.size());
+        for (Map.Entry<String, CompiledExpression> e : entries) {
+            CompiledExpression expr = e.getValue();
+            writeString(out, e.getKey());
+            int[] code = expr.code();
+            out.writeInt(code.length);
+            for (int instr : code) {
+                if (isRegistered(instr)) {
+                    instr = (instr & CompiledExpression.OP_MASK)
+                            | (operators.get(instr >>> CompiledExpression.OP_BITS) << CompiledExpression.OP_BITS);
+                } else if (isCall(instr)) {
+                    int argc = (instr >>> CompiledExpression.OP_BITS) & CompiledExpression.ARGC_MASK;
+                    int index = functions.get(instr >>> (CompiledExpression.OP_BITS + CompiledExpression.ARGC_BITS));
+                    instr = CompiledExpression.CALL
+                            | (((index << CompiledExpression.ARGC_BITS) | argc) << CompiledExpression.OP_BITS);
+                }
+                out.writeInt(instr);
+            }
+            for (int position : expr.positions()) {
+                out.writeInt(position);
+            }
+            double[] constants = expr.constants();
+            out.writeInt(constants.length);
+            for (double c : constants) {
+                out.writeDouble(c);
+            }
+            List<String> variables = expr.variables();
+            out.writeInt(variables.size());
+            for (String name : variables) {
+                writeString(out, name);
+            }
+        }
+        out.flush();
+        out.writeInt((int) checked.getChecksum().getValue());
+        out.flush();
+        return entries.size();
+    }
+
+    private static boolean isRegistered(int instr) {
+        int op = instr & CompiledExpression.OP_MASK;
+        return op == CompiledExpression.UNARY || op == CompiledExpression.BINARY;
+    }
+
+    private static boolean isCall(int instr) {
+        return (instr & CompiledExpression.OP_MASK) == CompiledExpression.CALL;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // --- Reading -----------
+
+    static int read(ByteBuffer buffer, ExpressionCache cache) throws IOException {
+        if (buffer.remaining() < 12 || buffer.getInt(buffer.position()) != MAGIC) {
+            throw new IOException("Not an expression store");
+        }
+        if (buffer.getInt(buffer.position() + 4) != VERSION) {
+            throw new IOException("Unsupported store version " + buffer.getInt(buffer.position() + 4));
+        }
+        int end = buffer.limit() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(end));
+        if ((int) crc.getValue() != buffer.getInt(end)) {
+            throw new IOException("Store checksum mismatch");
+        }
+        ByteBuffer in = buffer.duplicate().limit(end);
+        in.position(in.position() + 8);
+        try {
+            int nOperators = length(in, 1);
+            Operator[] operators = new Operator[nOperators];
+            for (int i = 0; i < nOperators; i++) {
+                int arity = in.get();
+                Operator op = Operator.byToken(readString(in));
+                operators[i] = op != null && op.arity == arity ? op : null;
+            }
+            MathFunction[] functions = new MathFunction[length(in, 4)];
+            for (int i = 0; i < functions.length; i++) {
+                functions[i] = MathFunction.byName(readString(in));
+            }
+            int count = in.getInt();
+            int loaded = 0;
+            Map<String, String> names = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String key = readString(in);
+                CompiledExpression expr = readProgram(in, operators, functions, names);
+                if (expr != null) {
+                    cache.put(key, expr);
+                    loaded++;
+                }
+            }
+            return loaded;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt store", e);
+        }
+    }
+
+    // Null if the program uses an operator or function that is not
+    // registered. Checked again by CompiledExpression.of, a bad program is a
+    // corrupt store. Variable names are shared through names, most programs
+    // use a few.
+    private static CompiledExpression readProgram(ByteBuffer in, Operator[] operators, MathFunction[] functions,
+                                                  Map<String, String> names) {
+        int[] code = new int[length(in, 2 * Integer.BYTES)];
+        in.asIntBuffer().get(code);
+        in.position(in.position() + code.length * Integer.BYTES);
+        int[] positions = new int[code.length];
+        in.asIntBuffer().get(positions);
+        in.position(in.position() + positions.length * Integer.BYTES);
+        double[] constants = new double[length(in, Double.BYTES)];
+        in.asDoubleBuffer().get(constants);
+        in.position(in.position() + constants.length * Double.BYTES);
+        String[] variables = new String[length(in, Integer.BYTES)];
+        for (int i = 0; i < variables.length; i++) {
+            variables[i] = names.computeIfAbsent(readString(in), name -> name);
+        }
+        boolean known = true;
+        for (int i = 0; i < code.length; i++) {
+            if (isRegistered(code[i])) {
+                Operator op = operators[code[i] >>> CompiledExpression.OP_BITS];
+                known &= op != null;
+                code[i] = op != null ? op.instruction() : code[i] & CompiledExpression.OP_MASK;
+            } else if (isCall(code[i])) {
+                int argc = (code[i] >>> CompiledExpression.OP_BITS) & CompiledExpression.ARGC_MASK;
+                MathFunction fn = functions[code[i] >>> (CompiledExpression.OP_BITS + CompiledExpression.ARGC_BITS)];
+                boolean callable = fn != null && fn.accepts(argc);
+                known &= callable;
+                if (callable) {
+                    code[i] = fn.instruction(argc);
+                }
+            }
+        }
+        // A call that cannot be made has no instruction to check
+        return known ? CompiledExpression.of(code, constants, variables, positions) : null;
+    }
+
+    // A count of items of size bytes each, checked against what is left
+    private static int length(ByteBuffer in, int size) {
+        int n = in.getInt();
+        if (n < 0 || (long) n * size > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return n;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[length(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,894 @@
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.LongStream;
+
+import static java.lang.System.out;
+
+/**
+ * Differential fuzzing of the evaluation engines
+ *
+ * Random expressions are checked against Reference, a recursive descent
+ * evaluator that shares no code with the Calculator. Every engine must give
+ * the same value to the bit (Double.compare, so -0.0 and NaN count) or the
+ * same error kind.
+ * The expressions cover precedence, right associative ^, prefix minus,
+ * nesting, calls with any number of arguments, long fractions, division by
+ * zero and, in one case out of five, a mutation that makes most of them
+ * invalid.
+ *
+ * The engines are Calculator.evaluate (cached, constants folded), the
+ * string path tokenize, infix2Postfix and evalPostfix, the Parser's program
+ * interpreted, Numeric.DOUBLE, StreamingEvaluator,
+ * IncrementalEvaluator and BatchCompiler. The interpreter, Jit and
+ * ColumnEvaluator also run the optimized program of the expression with its
+ * numbers as variables (see Bound), else Optimizer would leave them a
+ * single constant.
+ *
+ * Case i of seed s is generated from (s, i) only, so a case is reproduced
+ * with --case i whatever the number of threads. Cases run in chunks in
+ * parallel, each thread with engines of its own. A mismatch is shrunk to a
+ * minimal expression failing the same engine and printed with its case.
+ *
+ * Run: java Fuzz [cases] [--seed s] [--seconds s] [--case i]
+ *  --seconds stops early when the time is up, --case checks one case
+ */
+class Fuzz {
+
+    public static void main(String[] args) {
+        long cases = 1_000_000;
+        long seed = 1;
+        double seconds = 0;
+        long single = -1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--seconds")) {
+                seconds = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--case")) {
+                single = Long.parseLong(args[++i]);
+            } else {
+                cases = Long.parseLong(args[i]);
+            }
+        }
+        Fuzz fuzz = single >= 0 ? new Fuzz(seed, single, single + 1, 0) : new Fuzz(seed, 0, cases, seconds);
+        fuzz.run();
+        fuzz.report();
+        if (!fuzz.mismatches().isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    // Cases per task, the batch engine compiles a chunk at once
+    static final int CHUNK = 512;
+    // Mismatches kept (and shrunk) per engine, the rest are only counted
+    static final int KEEP = 5;
+    static final int MAX_DEPTH = 6;
+
+    // Functions the generator calls, with the arguments they accept
+    private static final String[] FUNCTIONS = {"sqrt", "abs", "exp", "log", "floor", "ceil", "atan",
+            "pow", "hypot", "atan2", "min", "max"};
+    // Tokens inserted by mutations
+    private static final String[] NOISE = {"(", ")", "+", "*", "^", "-", ",", ".", "x", "foo(", "max(", "$", "0", "1.5"};
+
+    private final long seed;
+    private final long from;
+    private final long to;
+    private final long deadline;
+    private final AtomicLong checked = new AtomicLong();
+    private final Map<Result.Code, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder values = new LongAdder();
+    private final Map<String, LongAdder> failed = new ConcurrentHashMap<>();
+    private final List<Mismatch> mismatches = new ArrayList<>();
+    private long nanos;
+
+    // Cases from (inclusive) to to (exclusive) of seed, stopping after seconds if > 0
+    Fuzz(long seed, long from, long to, double seconds) {
+        this.seed = seed;
+        this.from = from;
+        this.to = to;
+        this.deadline = seconds > 0 ? System.nanoTime() + (long) (seconds * 1e9) : Long.MAX_VALUE;
+    }
+
+    // Check all cases, chunks in parallel on the common pool
+    Fuzz run() {
+        long start = System.nanoTime();
+        long chunks = (to - from + CHUNK - 1) / CHUNK;
+        LongStream.range(0, chunks).parallel().forEach(c -> {
+            if (System.nanoTime() < deadline) {
+                long first = from + c * CHUNK;
+                checkChunk(first, Math.min(first + CHUNK, to));
+            }
+        });
+        nanos = System.nanoTime() - start;
+        return this;
+    }
+
+    long checked() {
+        return checked.get();
+    }
+
+    // Kept mismatches, shrunk, in case order
+    List<Mismatch> mismatches() {
+        synchronized (mismatches) {
+            List<Mismatch> sorted = new ArrayList<>(mismatches);
+            sorted.sort((a, b) -> Long.compare(a.index, b.index));
+            return sorted;
+        }
+    }
+
+    void report() {
+        out.printf("%,d cases in %.1f s, %,.0f cases/s, seed %d%n",
+                checked(), nanos / 1e9, checked() / (nanos / 1e9), seed);
+        out.printf("%-24s %12d%n", "value", values.sum());
+        for (Map.Entry<Result.Code, LongAdder> e : new TreeMap<>(errors).entrySet()) {
+            out.printf("%-24s %12d%n", e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(failed).entrySet()) {
+            out.printf("%-24s %12d mismatches%n", e.getKey(), e.getValue().sum());
+        }
+        for (Mismatch m : mismatches()) {
+            out.println(m);
+        }
+    }
+
+    // ---------- Checking -------
+
+    // One disagreement with the reference
+    static final class Mismatch {
+        final long index;
+        final String engine;
+        final String expr;
+        final String shrunk;
+        final Result expected;
+        final Result actual;
+
+        Mismatch(long index, String engine, String expr, String shrunk, Result expected, Result actual) {
+            this.index = index;
+            this.engine = engine;
+            this.expr = expr;
+            this.shrunk = shrunk;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        @Override
+        public String toString() {
+            return "case " + index + " " + engine + ": \"" + shrunk + "\" gives " + actual
+                    + ", reference " + expected + "\n    from \"" + expr + "\"";
+        }
+    }
+
+    private void checkChunk(long first, long end) {
+        Engines engines = new Engines();
+        List<String> exprs = new ArrayList<>(CHUNK);
+        List<Result> expected = new ArrayList<>(CHUNK);
+        for (long i = first; i < end; i++) {
+            String expr = generate(seed, i);
+            Result reference = reference(expr);
+            exprs.add(expr);
+            expected.add(reference);
+            if (reference.isOk()) {
+                values.increment();
+            } else {
+                errors.computeIfAbsent(reference.code, k -> new LongAdder()).increment();
+            }
+            for (String engine : Engines.NAMES) {
+                Result actual = engines.evaluate(engine, expr);
+                if (!same(actual, reference)) {
+                    mismatch(i, engine, expr, reference, actual, s -> engines.evaluate(engine, s));
+                }
+            }
+        }
+        // The batch engine shares subexpressions between the cases of a chunk
+        List<Result> shared = Engines.batch(exprs);
+        for (int k = 0; k < exprs.size(); k++) {
+            if (!same(shared.get(k), expected.get(k))) {
+                mismatch(first + k, "batch", exprs.get(k), expected.get(k), shared.get(k),
+                        s -> Engines.batch(List.of(s)).get(0));
+            }
+        }
+        checked.addAndGet(end - first);
+    }
+
+    // Count and, for the first few of engine, shrink to an expression where
+    // engine and the reference give the same kinds of result as here
+    private void mismatch(long index, String engine, String expr, Result expected, Result actual,
+                          Function<String, Result> eval) {
+        LongAdder count = failed.computeIfAbsent(engine, k -> new LongAdder());
+        count.increment();
+        if (count.sum() <= KEEP) {
+            Predicate<String> fails = s -> {
+                Result r = reference(s);
+                Result e = eval.apply(s);
+                return !same(e, r) && kind(r).equals(kind(expected)) && kind(e).equals(kind(actual));
+            };
+            // A batch case may fail only with the rest of its chunk, it is then kept whole
+            String shrunk = fails.test(expr) ? shrink(expr, fails) : expr;
+            Mismatch m = shrunk.equals(expr) ? new Mismatch(index, engine, expr, expr, expected, actual)
+                    : new Mismatch(index, engine, expr, shrunk, reference(shrunk), eval.apply(shrunk));
+            synchronized (mismatches) {
+                mismatches.add(m);
+            }
+        }
+    }
+
+    // The value or error of Reference. No text is NaN, as in Calculator.eval.
+    static Result reference(String expr) {
+        if (expr.isEmpty()) {
+            return Result.ok(Double.NaN);
+        }
+        return Engines.guard(() -> new Reference(expr).eval());
+    }
+
+    // Same value to the bit, or the same kind of error
+    static boolean same(Result a, Result b) {
+        if (a.isOk() != b.isOk()) {
+            return false;
+        }
+        return a.isOk() ? Double.compare(a.value, b.value) == 0 : a.error.equals(b.error);
+    }
+
+    // The error, or "value" for any value
+    private static String kind(Result r) {
+        return r.isOk() ? "value" : r.error;
+    }
+
+    // The engines checked, those with state are per thread
+    static final class Engines {
+
+        static final String[] NAMES = {"evaluate", "postfix", "interpreted", "numeric", "streaming",
+                "incremental", "variables", "jit", "columns"};
+
+        static final Calculator UNCACHED = new Calculator(0);
+
+        private final Calculator calculator = new Calculator(256);
+        private final StreamingEvaluator streaming = new StreamingEvaluator();
+        private final IncrementalEvaluator incremental = new IncrementalEvaluator();
+
+        // As Calculator.eval no text is NaN, the engines below it say it has no operand
+        Result evaluate(String engine, String expr) {
+            if (expr.isEmpty()) {
+                return Result.ok(Double.NaN);
+            }
+            switch (engine) {
+                case "evaluate":
+                    return calculator.evaluate(expr);
+                case "postfix":
+                    return guard(() -> UNCACHED.evalPostfix(UNCACHED.infix2Postfix(UNCACHED.tokenize(expr))));
+                case "interpreted":
+                    return new Parser().tryParse(expr).evaluate();
+                case "numeric":
+                    return guard(() -> UNCACHED.eval(expr, Numeric.DOUBLE));
+                case "streaming":
+                    return guard(() -> streaming.eval(expr));
+                case "incremental":
+                    return incremental.setText(expr).preview();
+                case "variables":
+                    return compiled(expr, CompiledExpression::evaluate);
+                case "jit":
+                    return compiled(expr, (e, vars) -> {
+                        MethodHandle jit = Jit.compile(e);
+                        return jit == null ? e.evaluate(vars) : guard(() -> {
+                            e.checkBound(vars.length);
+                            return (double) jit.invokeExact(vars);
+                        });
+                    });
+                case "columns":
+                    return compiled(expr, (e, vars) -> guard(() -> {
+                        double[][] columns = new double[vars.length][];
+                        for (int k = 0; k < vars.length; k++) {
+                            columns[k] = new double[]{vars[k]};
+                        }
+                        double[] value = new double[1];
+                        new ColumnEvaluator(e).eval(columns, value, 0, 1);
+                        return value[0];
+                    }));
+                default:
+                    throw new IllegalArgumentException(engine);
+            }
+        }
+
+        // Bound expressions in one batch, the others (with names of their
+        // own) in another
+        static List<Result> batch(List<String> exprs) {
+            Bound bound = new Bound();
+            List<String> texts = new ArrayList<>();
+            List<String> kept = new ArrayList<>();
+            for (String expr : exprs) {
+                String text = bound.bind(expr);
+                (text != null ? texts : kept).add(text != null ? text : expr);
+            }
+            List<Result> boundResults;
+            List<Result> keptResults;
+            try {
+                BatchCompiler compiled = BatchCompiler.compile(texts);
+                boundResults = compiled.evaluate(bound.values(compiled.variables()));
+                keptResults = BatchCompiler.compile(kept).evaluate();
+            } catch (RuntimeException | StackOverflowError ex) {
+                List<Result> crashed = new ArrayList<>();
+                for (int i = 0; i < exprs.size(); i++) {
+                    crashed.add(Result.error(ex.toString()));
+                }
+                return crashed;
+            }
+            List<Result> results = new ArrayList<>(exprs.size());
+            int b = 0;
+            int k = 0;
+            for (String expr : exprs) {
+                results.add(new Bound().bind(expr) != null ? boundResults.get(b++) : keptResults.get(k++));
+            }
+            return results;
+        }
+
+        // Parsed and optimized as by Calculator, with numbers as variables
+        // when expr can be bound, then run by engine on the values
+        private static Result compiled(String expr, BiFunction<CompiledExpression, double[], Result> engine) {
+            Bound bound = new Bound();
+            String text = bound.bind(expr);
+            CompiledExpression program;
+            try {
+                program = Optimizer.optimize(new Parser().tryParse(text != null ? text : expr));
+            } catch (IllegalArgumentException ex) {
+                return Result.error(ex.getMessage());
+            }
+            if (!program.isValid()) {
+                return Result.error(program.error());
+            }
+            return engine.apply(program, text != null ? bound.values(program.variables()) : new double[0]);
+        }
+
+        interface Throwing {
+            double eval() throws Throwable;
+        }
+
+        // The value, the error of an IllegalArgumentException, or anything
+        // else thrown as an error of its own (never the same as the reference)
+        static Result guard(Throwing eval) {
+            try {
+                return Result.ok(eval.eval());
+            } catch (IllegalArgumentException ex) {
+                return Result.error(ex.getMessage());
+            } catch (Throwable ex) {
+                return Result.error(ex.toString());
+            }
+        }
+    }
+
+    // The expected result, computed from the grammar while reading the text
+    // once, left to right:
+    //
+    //   sum     = product {("+" | "-") product}
+    //   product = unary {("*" | "/" | "%") unary}
+    //   unary   = "-" unary | power
+    //   power   = value ["^" unary]
+    //   value   = number | name | name "(" [sum {"," sum}] ")" | "(" sum ")"
+    //
+    // Numbers are Double.parseDouble, ^ and the functions java.lang.Math.
+    // The first error in the text is reported, as by the Parser, its kind
+    // decided by whether an operand or an operator was expected there. An
+    // expression without one is MISSING_OPERAND if it has a name (variables
+    // are not bound), else DIV_BY_ZERO if a / or % had a zero divisor.
+    static final class Reference {
+        private static final char END = 0;
+        private static final Set<String> UNARY = Set.of("sqrt", "abs", "exp", "log", "log10", "sin", "cos",
+                "tan", "asin", "acos", "atan", "floor", "ceil");
+        private static final Set<String> BINARY = Set.of("pow", "hypot", "atan2");
+        private static final Set<String> VARIADIC = Set.of("min", "max");
+
+        private final String text;
+        private int pos;
+        private int depth;          // Open parentheses, those of calls too
+        private boolean named;
+        private boolean divisionByZero;
+
+        Reference(String text) {
+            this.text = text;
+        }
+
+        double eval() {
+            double value = sum();
+            if (operator() != END) {
+                throw fail(Calculator.MISSING_OPERATOR);        // A , outside of a call
+            }
+            if (named) {
+                throw fail(Calculator.MISSING_OPERAND);
+            }
+            if (divisionByZero) {
+                throw fail(Calculator.DIV_BY_ZERO);
+            }
+            return value;
+        }
+
+        private double sum() {
+            double value = product();
+            for (char op = operator(); op == '+' || op == '-'; op = operator()) {
+                pos++;
+                double right = product();
+                value = op == '+' ? value + right : value - right;
+            }
+            return value;
+        }
+
+        private double product() {
+            double value = unary();
+            for (char op = operator(); op == '*' || op == '/' || op == '%'; op = operator()) {
+                pos++;
+                double right = unary();
+                divisionByZero |= op != '*' && right == 0;
+                value = op == '*' ? value * right : op == '/' ? value / right : value % right;
+            }
+            return value;
+        }
+
+        private double unary() {
+            if (operand() == '-') {
+                pos++;
+                return -unary();
+            }
+            return power();
+        }
+
+        private double power() {
+            double base = value();
+            if (operator() == '^') {
+                pos++;
+                return Math.pow(base, unary());
+            }
+            return base;
+        }
+
+        private double value() {
+            char ch = operand();
+            if (ch == '(') {
+                pos++;
+                depth++;
+                double value = sum();
+                if (operator() != ')') {
+                    throw fail(Calculator.MISSING_OPERATOR);    // A , outside of a call
+                }
+                pos++;
+                depth--;
+                return value;
+            }
+            if (!isLetter(ch)) {
+                return number();
+            }
+            String name = name();
+            if (!call(name)) {
+                named = true;
+                return Double.NaN;
+            }
+            List<Double> args = new ArrayList<>();
+            if (skipSpace() != ')') {
+                args.add(sum());
+                while (operator() == ',') {
+                    if (args.size() == MathFunction.MAX_ARGS) {
+                        throw fail(Calculator.WRONG_ARGUMENTS);
+                    }
+                    pos++;
+                    args.add(sum());
+                }
+            }
+            pos++;
+            depth--;
+            return apply(name, args);
+        }
+
+        // What starts an operand next: a digit, ., (, - or a letter. Errors
+        // for anything else.
+        private char operand() {
+            char ch = skipSpace();
+            if (ch == END) {
+                // An unclosed ( is found at the end
+                throw fail(depth > 0 ? Calculator.MISSING_OPERATOR : Calculator.MISSING_OPERAND);
+            }
+            if (ch == ')') {
+                // A ) without ( is found where it is
+                throw fail(depth == 0 ? Calculator.MISSING_OPERATOR : Calculator.MISSING_OPERAND);
+            }
+            if (isDigit(ch) || ch == '.' || ch == '(' || ch == '-' || isLetter(ch)) {
+                return ch;
+            }
+            throw fail(Calculator.MISSING_OPERAND);
+        }
+
+        // The next infix operator, or the , ) or END that ends an operand.
+        // Errors for anything else.
+        private char operator() {
+            char ch = skipSpace();
+            if (ch == END ? depth > 0 : ch == ')' && depth == 0) {
+                throw fail(Calculator.MISSING_OPERATOR);
+            }
+            if (ch == END || "+-*/%^,)".indexOf(ch) >= 0) {
+                return ch;
+            }
+            // An operand where an operator belongs, unless it is bad itself
+            if (isDigit(ch) || ch == '.') {
+                number();
+            } else if (isLetter(ch)) {
+                call(name());
+            } else if (ch != '(') {
+                throw fail(Calculator.MISSING_OPERAND);
+            }
+            throw fail(Calculator.MISSING_OPERATOR);
+        }
+
+        // Digits with at most one . in them
+        private double number() {
+            int start = pos;
+            boolean point = false;
+            for (; pos < text.length(); pos++) {
+                char ch = text.charAt(pos);
+                if (ch == '.' && !point) {
+                    point = true;
+                } else if (!isDigit(ch)) {
+                    break;
+                }
+            }
+            if (pos - start == 1 && point) {
+                throw fail(Calculator.MISSING_OPERAND);
+            }
+            return Double.parseDouble(text.substring(start, pos));
+        }
+
+        private String name() {
+            int start = pos;
+            while (pos < text.length() && (isLetter(text.charAt(pos)) || isDigit(text.charAt(pos)))) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        // True if name is followed by ( and so is called, the ( is read
+        private boolean call(String name) {
+            int at = pos;
+            if (skipSpace() != '(') {
+                pos = at;
+                return false;
+            }
+            if (!UNARY.contains(name) && !BINARY.contains(name) && !VARIADIC.contains(name)) {
+                throw fail(Calculator.OP_NOT_FOUND);
+            }
+            pos++;
+            depth++;
+            return true;
+        }
+
+        private static double apply(String name, List<Double> args) {
+            int count = args.size();
+            if (count != (UNARY.contains(name) ? 1 : BINARY.contains(name) ? 2 : Math.max(count, 1))) {
+                throw fail(Calculator.WRONG_ARGUMENTS);
+            }
+            double a = args.get(0);
+            double b = count > 1 ? args.get(1) : 0;
+            switch (name) {
+                case "sqrt": return Math.sqrt(a);
+                case "abs": return Math.abs(a);
+                case "exp": return Math.exp(a);
+                case "log": return Math.log(a);
+                case "log10": return Math.log10(a);
+                case "sin": return Math.sin(a);
+                case "cos": return Math.cos(a);
+                case "tan": return Math.tan(a);
+                case "asin": return Math.asin(a);
+                case "acos": return Math.acos(a);
+                case "atan": return Math.atan(a);
+                case "floor": return Math.floor(a);
+                case "ceil": return Math.ceil(a);
+                case "pow": return Math.pow(a, b);
+                case "hypot": return Math.hypot(a, b);
+                case "atan2": return Math.atan2(a, b);
+                default:
+                    double m = a;
+                    for (double x : args) {
+                        m = name.equals("min") ? Math.min(m, x) : Math.max(m, x);
+                    }
+                    return m;
+            }
+        }
+
+        // The character at the next non space, END at the end of the text
+        private char skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            return pos < text.length() ? text.charAt(pos) : END;
+        }
+
+        private static boolean isDigit(char ch) {
+            return ch >= '0' && ch <= '9';
+        }
+
+        private static boolean isLetter(char ch) {
+            return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_';
+        }
+
+        private static IllegalArgumentException fail(String error) {
+            return new IllegalArgumentException(error);
+        }
+    }
+
+    // Numbers written as variables v0, v1, ..., so the compiled engines run
+    // their instructions instead of a constant folded by Optimizer. The same
+    // number is the same variable, Optimizer then shares subexpressions.
+    static final class Bound {
+        private final Lexer lexer = new Lexer();
+        private final Map<String, String> names = new HashMap<>();
+        private final List<Double> values = new ArrayList<>();
+
+        // expr with its numbers as variables, null if it has variables of
+        // its own, a number that is not one whole token or a number before
+        // a ( (as a variable that would be a call)
+        String bind(String expr) {
+            StringBuilder sb = new StringBuilder();
+            List<String> tokens = split(expr);
+            for (int i = 0; i < tokens.size(); i++) {
+                String token = tokens.get(i);
+                if (isNumber(token)) {
+                    if (lexer.reset(token).next() != Lexer.Kind.NUMBER || lexer.end() != token.length()
+                            || (i + 1 < tokens.size() && tokens.get(i + 1).equals("("))) {
+                        return null;
+                    }
+                    String name = names.get(token);
+                    if (name == null) {
+                        name = "v" + values.size();
+                        names.put(token, name);
+                        values.add(lexer.number());
+                    }
+                    token = name;
+                } else if (Character.isLetter(token.charAt(0)) && !token.endsWith("(")) {
+                    return null;
+                }
+                sb.append(sb.length() > 0 ? " " : "").append(token);
+            }
+            return sb.toString();
+        }
+
+        // Values of the variables, in the order of a program's variables()
+        double[] values(List<String> variables) {
+            double[] vars = new double[variables.size()];
+            for (int k = 0; k < vars.length; k++) {
+                vars[k] = values.get(Integer.parseInt(variables.get(k).substring(1)));
+            }
+            return vars;
+        }
+    }
+
+    // ---------- Shrinking -------
+
+    // A shortest expression found that still fails, by removing tokens (runs
+    // of a power of two, longest first) and parentheses, and by replacing numbers
+    // and parenthesized groups with 0, 1 or 2, while fails holds. Tokens are
+    // rejoined with single spaces.
+    static String shrink(String expr, Predicate<String> fails) {
+        List<String> tokens = split(expr);
+        if (!fails.test(String.join(" ", tokens))) {
+            return expr;
+        }
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int size = Integer.highestOneBit(Math.max(1, tokens.size() / 2)); size >= 1 && !progress; size /= 2) {
+                for (int start = 0; start + size <= tokens.size() && !progress; start++) {
+                    List<String> candidate = new ArrayList<>(tokens.subList(0, start));
+                    candidate.addAll(tokens.subList(start + size, tokens.size()));
+                    progress = accept(candidate, tokens, fails);
+                }
+            }
+            for (int open = 0; open < tokens.size() && !progress; open++) {
+                int close = closing(tokens, open);
+                if (close > 0) {
+                    List<String> candidate = new ArrayList<>(tokens);
+                    candidate.remove(close);
+                    candidate.remove(open);
+                    progress = accept(candidate, tokens, fails);
+                    for (String simpler : new String[]{"0", "1"}) {
+                        if (!progress) {
+                            candidate = new ArrayList<>(tokens.subList(0, open));
+                            candidate.add(simpler);
+                            candidate.addAll(tokens.subList(close + 1, tokens.size()));
+                            progress = accept(candidate, tokens, fails);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < tokens.size() && !progress; i++) {
+                for (String simpler : new String[]{"0", "1", "2"}) {
+                    String t = tokens.get(i);
+                    if (!progress && isNumber(t) && !t.equals(simpler) && (t.length() > 1 || t.compareTo(simpler) > 0)) {
+                        List<String> candidate = new ArrayList<>(tokens);
+                        candidate.set(i, simpler);
+                        progress = accept(candidate, tokens, fails);
+                    }
+                }
+            }
+        }
+        return String.join(" ", tokens);
+    }
+
+    private static boolean accept(List<String> candidate, List<String> tokens, Predicate<String> fails) {
+        if (!fails.test(String.join(" ", candidate))) {
+            return false;
+        }
+        tokens.clear();
+        tokens.addAll(candidate);
+        return true;
+    }
+
+    // Index of the ) matching an opening ( or name( at open, -1 if none
+    private static int closing(List<String> tokens, int open) {
+        if (!tokens.get(open).endsWith("(")) {
+            return -1;
+        }
+        int depth = 0;
+        for (int i = open; i < tokens.size(); i++) {
+            String t = tokens.get(i);
+            depth += t.endsWith("(") ? 1 : t.equals(")") ? -1 : 0;
+            if (depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNumber(String token) {
+        return !token.isEmpty() && (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.');
+    }
+
+    // Numbers, names (with a following ( as one token) and single characters
+    static List<String> split(String expr) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < expr.length()) {
+            char ch = expr.charAt(i);
+            int start = i++;
+            if (Character.isDigit(ch) || ch == '.') {
+                while (i < expr.length() && (Character.isDigit(expr.charAt(i)) || expr.charAt(i) == '.')) {
+                    i++;
+                }
+            } else if (Character.isLetter(ch) || ch == '_') {
+                while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) || expr.charAt(i) == '_')) {
+                    i++;
+                }
+                if (i < expr.length() && expr.charAt(i) == '(') {
+                    i++;
+                }
+            } else if (Character.isWhitespace(ch)) {
+                continue;
+            }
+            tokens.add(expr.substring(start, i));
+        }
+        return tokens;
+    }
+
+    // ---------- Generating -------
+
+    // Case index of seed, the same on every run
+    static String generate(long seed, long index) {
+        // Mixed, seed + 1 must not be the stream of seed one step on
+        long z = seed * 0x9E3779B97F4A7C15L + index;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        SplittableRandom rnd = new SplittableRandom(z ^ (z >>> 31));
+        List<String> tokens = new ArrayList<>();
+        expr(tokens, rnd, 1 + rnd.nextInt(MAX_DEPTH));
+        if (rnd.nextInt(5) == 0) {
+            mutate(tokens, rnd);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String t : tokens) {
+            if (sb.length() > 0) {
+                int space = rnd.nextInt(8);
+                sb.append(space < 4 ? " " : space < 6 ? "" : space < 7 ? "  " : "\t");
+            }
+            sb.append(t);
+        }
+        return sb.toString();
+    }
+
+    private static void expr(List<String> tokens, SplittableRandom rnd, int depth) {
+        int kind = depth <= 0 ? 0 : rnd.nextInt(10);
+        switch (kind) {
+            case 0:
+            case 1:
+                tokens.add(number(rnd));
+                break;
+            case 2:
+                tokens.add("-");
+                expr(tokens, rnd, depth - 1);
+                break;
+            case 3:
+                tokens.add("(");
+                expr(tokens, rnd, depth - 1);
+                tokens.add(")");
+                break;
+            case 4:
+                // A ^ chain, right associative
+                expr(tokens, rnd, 0);
+                for (int n = 1 + rnd.nextInt(3); n > 0; n--) {
+                    tokens.add("^");
+                    expr(tokens, rnd, rnd.nextInt(2) == 0 ? 0 : depth - 2);
+                }
+                break;
+            case 5:
+                call(tokens, rnd, depth);
+                break;
+            default:
+                // A left associative chain mixing precedences
+                expr(tokens, rnd, depth - 1);
+                for (int n = 1 + rnd.nextInt(3); n > 0; n--) {
+                    tokens.add(String.valueOf("+-*/%^".charAt(rnd.nextInt(6))));
+                    expr(tokens, rnd, depth - 1);
+                }
+                break;
+        }
+    }
+
+    private static void call(List<String> tokens, SplittableRandom rnd, int depth) {
+        String name = FUNCTIONS[rnd.nextInt(FUNCTIONS.length)];
+        MathFunction fn = MathFunction.byName(name);
+        int count = fn.minArgs + rnd.nextInt(Math.min(fn.maxArgs - fn.minArgs, 4) + 1);
+        if (rnd.nextInt(20) == 0) {
+            count = rnd.nextInt(4);     // Maybe the wrong number
+        }
+        tokens.add(name + "(");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                tokens.add(",");
+            }
+            expr(tokens, rnd, depth - 1);
+        }
+        tokens.add(")");
+    }
+
+    // Small integers (0 for division by zero), fractions and long fractions
+    private static String number(SplittableRandom rnd) {
+        switch (rnd.nextInt(8)) {
+            case 0:
+                return "0";
+            case 1:
+                return rnd.nextInt(1000) + "." + rnd.nextInt(1000);
+            case 2:
+                return "." + (1 + rnd.nextInt(99));
+            case 3:
+                return "0." + Long.toString(rnd.nextLong(Long.MAX_VALUE)).repeat(1 + rnd.nextInt(2));
+            case 4:
+                return Long.toString(rnd.nextLong(1L << 60));
+            default:
+                return String.valueOf(1 + rnd.nextInt(9));
+        }
+    }
+
+    // Delete, duplicate, swap or insert a token
+    private static void mutate(List<String> tokens, SplittableRandom rnd) {
+        int i = rnd.nextInt(tokens.size());
+        switch (rnd.nextInt(4)) {
+            case 0:
+                tokens.remove(i);
+                break;
+            case 1:
+                tokens.add(i, tokens.get(i));
+                break;
+            case 2:
+                if (i + 1 < tokens.size()) {
+                    tokens.add(i, tokens.remove(i + 1));
+                }
+                break;
+            default:
+                tokens.add(rnd.nextInt(tokens.size() + 1), NOISE[rnd.nextInt(NOISE.length)]);
+                break;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *   Evaluates an expression while it is being edited
+ *
+ *   Runs the same shunting-yard as Parser but reduces eagerly: an operator is
+ *   applied to the values as soon as it is popped. After each token the parse
+ *   state (value stack, operator stack, lexer depth) is kept as a snapshot. The
+ *   stacks are persistent linked lists, a snapshot shares all but its top
+ *   cells with the one before, so a snapshot costs O(1) memory.
+ *
+ *   On an edit (append, backspace, clear, or any new text) the tokens before
+ *   the first changed character are kept and only the rest is lexed and
+ *   reduced again. Typing at the end of a 100k character expression costs a
+ *   token or two plus the final reduction of what is still pending.
+ *
+ *   preview() gives the same value, or the same error, as Calculator.eval.
+ *   An IncrementalEvaluator is not thread-safe, use it from one thread.
+ */
+final class IncrementalEvaluator {
+
+    // --- Persistent stacks -----------
+
+    private static final class Values {
+        final double value;
+        final Values next;
+
+        Values(double value, Values next) {
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    // A null op marks a left parenthesis, for a call with the function and
+    // its arguments so far
+    private static final class Ops {
+        final Operator op;
+        final MathFunction fn;
+        final int count;
+        final Ops next;
+
+        Ops(Operator op, Ops next) {
+            this(op, null, 0, next);
+        }
+
+        Ops(Operator op, MathFunction fn, int count, Ops next) {
+            this.op = op;
+            this.fn = fn;
+            this.count = count;
+            this.next = next;
+        }
+    }
+
+    // Parse state after a token
+    private static final class State {
+        final int end;              // Input offset just after the token
+        final boolean name;         // The token is a NAME
+        final int depth;
+        final boolean operand;      // Expecting an operand
+        final Values values;
+        final Ops ops;
+        final boolean unbound;      // A variable was seen, eval has no bindings
+        final String error;         // First error while reducing, or null
+
+        State(int end, boolean name, int depth, boolean operand, Values values, Ops ops, boolean unbound,
+              String error) {
+            this.end = end;
+            this.name = name;
+            this.depth = depth;
+            this.operand = operand;
+            this.values = values;
+            this.ops = ops;
+            this.unbound = unbound;
+            this.error = error;
+        }
+    }
+
+    private static final State EMPTY = new State(0, false, 0, true, null, null, false, null);
+
+    private final Lexer lexer = new Lexer();
+    private final List<State> states = new ArrayList<>();
+    private String text = "";
+    private String syntaxError;     // Sticky, nothing after it is lexed
+    private Result preview;
+    // Working state while reducing
+    private Values values;
+    private Ops ops;
+    private String error;
+
+    // --- Edits -----------
+
+    IncrementalEvaluator setText(String newText) {
+        int common = commonPrefix(text, newText);
+        if (common == text.length() && common == newText.length()) {
+            return this;
+        }
+        // A token ending at the first change may grow ("12" then "123"), so
+        // only tokens ending before it are kept
+        int keep = states.size();
+        while (keep > 0 && states.get(keep - 1).end >= common) {
+            keep--;
+        }
+        // and a name is a function if a ( follows, after any spaces ("max (")
+        if (keep > 0 && states.get(keep - 1).name) {
+            keep--;
+        }
+        states.subList(keep, states.size()).clear();
+        text = newText;
+        syntaxError = null;
+        preview = null;
+        relex();
+        return this;
+    }
+
+    IncrementalEvaluator append(String s) {
+        return setText(text + s);
+    }
+
+    IncrementalEvaluator backspace() {
+        return text.isEmpty() ? this : setText(text.substring(0, text.length() - 1));
+    }
+
+    IncrementalEvaluator clear() {
+        return setText("");
+    }
+
+    String text() {
+        return text;
+    }
+
+    // Tokens parsed so far, kept between edits
+    int tokens() {
+        return states.size();
+    }
+
+    // --- Evaluation -----------
+
+    // Value of the current text, as Calculator.eval would give
+    Result preview() {
+        if (preview == null) {
+            preview = finish();
+        }
+        return preview;
+    }
+
+    private Result finish() {
+        if (syntaxError != null) {
+            return Result.error(syntaxError);
+        }
+        State s = last();
+        if (s.depth != 0) {
+            return Result.error(Calculator.MISSING_OPERATOR);
+        }
+        if (s.operand) {
+            return text.isEmpty() ? Result.ok(Double.NaN) : Result.error(Calculator.MISSING_OPERAND);
+        }
+        if (s.unbound) {
+            return Result.error(Calculator.MISSING_OPERAND);
+        }
+        load(s);
+        while (ops != null) {
+            reduce();
+        }
+        return error != null ? Result.error(error) : Result.ok(values.value);
+    }
+
+    // Lex and reduce from the last kept state to the end of text
+    private void relex() {
+        State s = last();
+        lexer.resume(text, s.end, s.depth, s.operand);
+        load(s);
+        boolean unbound = s.unbound;
+        try {
+            for (Lexer.Kind kind = lexer.next(); kind != Lexer.Kind.END; kind = lexer.next()) {
+                switch (kind) {
+                    case NUMBER:
+                    case NAME:
+                        if (!s.operand) {
+                            throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+                        }
+                        unbound |= kind == Lexer.Kind.NAME;
+                        values = new Values(kind == Lexer.Kind.NUMBER ? lexer.number() : Double.NaN, values);
+                        break;
+                    case LEFT_PAREN:
+                        if (!s.operand) {
+                            throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+                        }
+                        ops = new Ops(null, ops);
+                        break;
+                    case FUNCTION:
+                        if (!s.operand) {
+                            throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+                        }
+                        ops = new Ops(null, lexer.function(), 1, ops);
+                        break;
+                    case COMMA:
+                        while (ops != null && ops.op != null) {
+                            reduce();
+                        }
+                        if (ops == null || ops.fn == null) {
+                            throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+                        }
+                        if (ops.count == MathFunction.MAX_ARGS) {
+                            throw new IllegalArgumentException(Calculator.WRONG_ARGUMENTS);
+                        }
+                        ops = new Ops(null, ops.fn, ops.count + 1, ops.next);
+                        break;
+                    case RIGHT_PAREN:
+                        // f() has no arguments, anywhere else ) needs an operand before it
+                        boolean empty = s.operand && ops.op == null && ops.fn != null && ops.count == 1;
+                        if (s.operand && !empty) {
+                            throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+                        }
+                        while (ops.op != null) {
+                            reduce();
+                        }
+                        MathFunction fn = ops.fn;
+                        int count = empty ? 0 : ops.count;
+                        ops = ops.next;
+                        if (fn != null) {
+                            if (!fn.accepts(count)) {
+                                throw new IllegalArgumentException(Calculator.WRONG_ARGUMENTS);
+                            }
+                            reduceCall(fn, count);
+                        }
+                        break;
+                    case ERROR:
+                        throw new IllegalArgumentException(lexer.error());
+                    default:
+                        Operator op = lexer.operator();
+                        if (!op.isPrefix()) {
+                            while (ops != null && ops.op != null && Parser.binds(ops.op, op)) {
+                                reduce();
+                            }
+                        }
+                        ops = new Ops(op, ops);
+                        break;
+                }
+                s = new State(lexer.end(), kind == Lexer.Kind.NAME, lexer.depth(), lexer.expectsOperand(),
+                        values, ops, unbound, error);
+                states.add(s);
+            }
+        } catch (IllegalArgumentException e) {
+            // The lexer also checks the depth at END, finish() does that again
+            if (lexer.start() < text.length()) {
+                syntaxError = e.getMessage();
+            }
+        }
+    }
+
+    // Apply the operator on top of ops to the values
+    private void reduce() {
+        Operator op = ops.op;
+        ops = ops.next;
+        double result;
+        if (op.isPrefix()) {
+            double a = values.value;
+            values = values.next;
+            result = error == null ? apply(op, a, 0) : Double.NaN;
+        } else {
+            double b = values.value;
+            double a = values.next.value;
+            values = values.next.next;
+            result = error == null ? apply(op, a, b) : Double.NaN;
+        }
+        values = new Values(result, values);
+    }
+
+    // Replace the count values on top by fn of them
+    private void reduceCall(MathFunction fn, int count) {
+        double[] args = new double[count];
+        for (int i = count - 1; i >= 0; i--) {
+            args[i] = values.value;
+            values = values.next;
+        }
+        double result = Double.NaN;
+        if (error == null) {
+            try {
+                result = fn.apply(args, 0, count);
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+            }
+        }
+        values = new Values(result, values);
+    }
+
+    // Keeps the first error, later operators are not applied, as in eval
+    private double apply(Operator op, double a, double b) {
+        try {
+            return op.isPrefix() ? op.apply(a) : op.apply(a, b);
+        } catch (IllegalArgumentException e) {
+            error = e.getMessage();
+            return Double.NaN;
+        }
+    }
+
+    private void load(State s) {
+        values = s.values;
+        ops = s.ops;
+        error = s.error;
+    }
+
+    private State last() {
+        return states.isEmpty() ? EMPTY : states.get(states.size() - 1);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,275 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/*
+ *   Turns a CompiledExpression into a method handle tree of type
+ *   (double[] vars)double
+ *
+ *   The tree is built with MethodHandle combinators, one node per instruction,
+ *   so there is no dispatch left at run time. When a tree gets hot the JVM
+ *   customizes it into bytecode of its own and the JIT compiles and inlines it
+ *   like a hand written method. No class is defined per expression, the tree
+ *   is garbage collected with its CompiledExpression, so long running servers
+ *   do not fill metaspace.
+ *
+ *   Function calls bind the function itself as a constant, so after inlining
+ *   sqrt(x) is a call of Math.sqrt, which the JIT compiles to the machine
+ *   instruction.
+ *
+ *   Shared subexpressions (STORE/LOAD) are computed once, as in the
+ *   interpreter. While the tree is built each node also takes the temporaries
+ *   as parameters after vars, a LOAD just returns its parameter. At the end
+ *   each temporary is bound with foldArguments, last stored first, so the
+ *   tree computes it once and passes it on, like a let.
+ *
+ *   CompiledExpression switches to the tree after jitThreshold() evaluations.
+ */
+final class Jit {
+
+    // Larger programs stay interpreted. The tree is only fast once the JIT
+    // inlines all of it, and past a few hundred nodes it runs out of inlining
+    // budget and calls node by node. Measured on a chain of + - * / over x:
+    // 257 instructions 58 ns jitted against 1.1 us interpreted, 513 about
+    // 0.9 against 1.7 us, and 1025 11 us, three times the interpreter.
+    static final int MAX_INSTRUCTIONS = 256;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType BINARY = MethodType.methodType(double.class, double.class, double.class);
+    private static final MethodType UNARY = MethodType.methodType(double.class, double.class);
+    private static final MethodHandle ADD = find("add", BINARY);
+    private static final MethodHandle SUB = find("sub", BINARY);
+    private static final MethodHandle MUL = find("mul", BINARY);
+    private static final MethodHandle DIV = find("divide", BINARY);
+    private static final MethodHandle MOD = find("remainder", BINARY);
+    private static final MethodHandle POW = find("pow", BINARY);
+    private static final MethodHandle NEG = find("neg", UNARY);
+    private static final MethodHandle APPLY_BINARY;
+    private static final MethodHandle APPLY_UNARY;
+    private static final MethodHandle CALL_UNARY;
+    private static final MethodHandle CALL_BINARY;
+    private static final MethodHandle CALL_BODY;
+    private static final MethodHandle VAR = MethodHandles.arrayElementGetter(double[].class);
+
+    static {
+        try {
+            APPLY_BINARY = LOOKUP.findVirtual(Operator.class, "apply", BINARY);
+            APPLY_UNARY = LOOKUP.findVirtual(Operator.class, "apply", UNARY);
+            CALL_UNARY = LOOKUP.findVirtual(DoubleUnaryOperator.class, "applyAsDouble", UNARY);
+            CALL_BINARY = LOOKUP.findVirtual(DoubleBinaryOperator.class, "applyAsDouble", BINARY);
+            CALL_BODY = LOOKUP.findVirtual(MathFunction.Body.class, "apply",
+                    MethodType.methodType(double.class, double[].class, int.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Jit() {
+    }
+
+    // Handle of type (double[])double computing the same as expr.eval(vars),
+    // null if expr is too large
+    static MethodHandle compile(CompiledExpression expr) {
+        int[] code = expr.code();
+        if (code.length > MAX_INSTRUCTIONS) {
+            return null;
+        }
+        int temps = expr.stackSize() - expr.tempBase();
+        // (double[] vars, double t0, ..., double tn)double, the type of every node
+        MethodType type = MethodType.methodType(double.class, double[].class);
+        type = type.appendParameterTypes(Collections.nCopies(temps, double.class));
+        double[] constants = expr.constants();
+        MethodHandle[] stack = new MethodHandle[expr.stackSize()];
+        MethodHandle[] stored = new MethodHandle[temps];
+        int[] order = new int[temps];       // Temporaries in the order stored
+        int stores = 0;
+        int sp = 0;
+        for (int instr : code) {
+            int arg = instr >>> CompiledExpression.OP_BITS;
+            switch (instr & CompiledExpression.OP_MASK) {
+                case CompiledExpression.CONST:
+                    stack[sp++] = MethodHandles.dropArguments(
+                            MethodHandles.constant(double.class, constants[arg]), 0, type.parameterList());
+                    break;
+                case CompiledExpression.VAR:
+                    stack[sp++] = MethodHandles.dropArguments(MethodHandles.insertArguments(VAR, 1, arg),
+                            1, type.dropParameterTypes(0, 1).parameterList());
+                    break;
+                case CompiledExpression.STORE:
+                    if (stored[arg] != null) {
+                        return null;        // A reused temporary, not from Optimizer
+                    }
+                    stored[arg] = stack[sp - 1];
+                    order[stores++] = arg;
+                    stack[sp - 1] = load(arg, type);
+                    break;
+                case CompiledExpression.LOAD:
+                    stack[sp++] = load(arg, type);
+                    break;
+                case CompiledExpression.NEG:
+                    stack[sp - 1] = MethodHandles.filterReturnValue(stack[sp - 1], NEG);
+                    break;
+                case CompiledExpression.UNARY:
+                    MethodHandle unary = APPLY_UNARY.bindTo(Operator.byId(arg));
+                    stack[sp - 1] = MethodHandles.filterReturnValue(stack[sp - 1], unary);
+                    break;
+                case CompiledExpression.CALL:
+                    int argc = arg & CompiledExpression.ARGC_MASK;
+                    sp -= argc;
+                    stack[sp] = call(CompiledExpression.function(arg), Arrays.copyOfRange(stack, sp, sp + argc),
+                            type);
+                    sp++;
+                    break;
+                default:
+                    sp--;
+                    stack[sp - 1] = combine(binary(instr), stack[sp - 1], stack[sp], type);
+                    break;
+            }
+        }
+        return let(stack[0], stored, order, stores);
+    }
+
+    // Handle of the node type returning temporary temp
+    private static MethodHandle load(int temp, MethodType type) {
+        return MethodHandles.permuteArguments(MethodHandles.identity(double.class), type, 1 + temp);
+    }
+
+    // Bind the temporaries of root, whose type is that of compile's nodes.
+    // Last stored first: each is computed once, from vars and the ones
+    // stored before it, and passed to the rest of the tree.
+    private static MethodHandle let(MethodHandle root, MethodHandle[] stored, int[] order, int stores) {
+        List<Integer> open = new ArrayList<>();     // Temporaries still parameters of root
+        for (int t = 0; t < stored.length; t++) {
+            open.add(t);
+        }
+        for (int i = stores - 1; i >= 0; i--) {
+            int t = order[i];
+            int p = open.indexOf(t);
+            open.remove(p);
+            // Move t to the front, foldArguments passes its value there
+            int[] reorder = new int[root.type().parameterCount()];
+            for (int q = 0; q < open.size() + 1; q++) {
+                reorder[1 + q] = q == p ? 0 : 2 + (q < p ? q : q - 1);
+            }
+            reorder[0] = 1;
+            MethodType moved = root.type().dropParameterTypes(1 + p, 2 + p).insertParameterTypes(0, double.class);
+            root = MethodHandles.permuteArguments(root, moved, reorder);
+            root = MethodHandles.foldArguments(root, only(stored[t], open));
+        }
+        // Left are temporaries never stored, which are never loaded either
+        return only(root, List.of());
+    }
+
+    // h without its temporary parameters but those in keep (in order), the
+    // others it must not use
+    private static MethodHandle only(MethodHandle h, List<Integer> keep) {
+        for (int k = h.type().parameterCount() - 2; k >= 0; k--) {
+            if (!keep.contains(k)) {
+                h = MethodHandles.insertArguments(h, 1 + k, 0.0);
+            }
+        }
+        return h;
+    }
+
+    // Handle of the node type applying op to the results of left and right
+    private static MethodHandle combine(MethodHandle op, MethodHandle left, MethodHandle right, MethodType type) {
+        return all(op, new MethodHandle[]{left, right}, type);
+    }
+
+    // Handle of the node type applying fn to the results of args
+    private static MethodHandle call(MathFunction fn, MethodHandle[] args, MethodType type) {
+        if (fn.unary != null) {
+            return MethodHandles.filterReturnValue(args[0], CALL_UNARY.bindTo(fn.unary));
+        }
+        if (fn.binary != null) {
+            return combine(CALL_BINARY.bindTo(fn.binary), args[0], args[1], type);
+        }
+        // Any number of arguments, passed in a new array
+        MethodHandle body = MethodHandles.insertArguments(CALL_BODY.bindTo(fn.body), 1, 0, args.length)
+                .asCollector(double[].class, args.length);
+        return all(body, args, type);
+    }
+
+    // Handle of the node type passing the results of args to target, which
+    // takes one double for each
+    private static MethodHandle all(MethodHandle target, MethodHandle[] args, MethodType type) {
+        if (args.length == 0) {
+            return MethodHandles.dropArguments(target, 0, type.parameterList());
+        }
+        for (int i = args.length - 1; i >= 0; i--) {
+            target = MethodHandles.collectArguments(target, i, args[i]);
+        }
+        // Every arg gets the same parameters
+        int n = type.parameterCount();
+        int[] reorder = new int[args.length * n];
+        for (int i = 0; i < reorder.length; i++) {
+            reorder[i] = i % n;
+        }
+        return MethodHandles.permuteArguments(target, type, reorder);
+    }
+
+    private static MethodHandle binary(int instr) {
+        switch (instr & CompiledExpression.OP_MASK) {
+            case CompiledExpression.ADD:
+                return ADD;
+            case CompiledExpression.SUB:
+                return SUB;
+            case CompiledExpression.MUL:
+                return MUL;
+            case CompiledExpression.DIV:
+                return DIV;
+            case CompiledExpression.MOD:
+                return MOD;
+            case CompiledExpression.POW:
+                return POW;
+            case CompiledExpression.BINARY:
+                return APPLY_BINARY.bindTo(Operator.byId(instr >>> CompiledExpression.OP_BITS));
+            default:
+                throw new RuntimeException(Calculator.OP_NOT_FOUND);
+        }
+    }
+
+    private static MethodHandle find(String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(Jit.class, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // ---------- The operations, same as in CompiledExpression.run -------
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double sub(double a, double b) {
+        return a - b;
+    }
+
+    private static double mul(double a, double b) {
+        return a * b;
+    }
+
+    private static double divide(double a, double b) {
+        return Operator.divide(a, b);
+    }
+
+    private static double remainder(double a, double b) {
+        return Operator.remainder(a, b);
+    }
+
+    private static double pow(double a, double b) {
+        return MathFunction.power(a, b);
+    }
+
+    private static double neg(double a) {
+        return -a;
+    }
+}
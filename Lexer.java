@@ -0,0 +1,331 @@
+import java.util.Arrays;
+
+/*
+ *   A single pass lexer for Calculator expressions
+ *
+ *   Walks the input once and produces typed tokens: numbers are parsed straight
+ *   to double, operators to an Operator, parentheses to their Kind. No String is
+ *   created per token. Parentheses are checked with a depth counter as they are
+ *   read. An operator symbol where an operand is expected (at the start, after
+ *   '(' or another operator) is looked up as a prefix operator, so "-" is NEG
+ *   there and SUB elsewhere. A name followed by '(' is a function call, one
+ *   FUNCTION token for both, looked up in MathFunction. Its arguments are
+ *   separated by COMMA tokens.
+ *
+ *   Use as a cursor (reset, then next until END) or let lex fill a reusable
+ *   Tokens buffer. A Lexer is not thread-safe, use one per thread.
+ *
+ *   Bad input gives an ERROR token, with the message in error() and start()
+ *   at the offending character (the input length for an unclosed
+ *   parenthesis). No exception is thrown, only lex does that.
+ */
+final class Lexer {
+
+    enum Kind {
+        NUMBER,
+        NAME,           // A variable, letters, digits and _ not starting with a digit
+        FUNCTION,       // A name and the '(' after it, see function()
+        OPERATOR,
+        LEFT_PAREN,
+        RIGHT_PAREN,
+        COMMA,
+        END,
+        ERROR           // See error(), every later next() gives ERROR too
+    }
+
+    // Largest integer where every smaller integer is exact as a double
+    private static final long MAX_EXACT = 1L << 53;
+    // Powers of ten exact as doubles
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private CharSequence input = "";
+    private int pos;
+    private int depth;
+    private boolean operand;
+
+    // Current token
+    private Kind kind = Kind.END;
+    private int start;
+    private double number;
+    private Operator operator;
+    private MathFunction function;
+    private int nameEnd;
+    private String error;
+
+    Lexer reset(CharSequence input) {
+        this.input = input;
+        pos = 0;
+        depth = 0;
+        operand = true;
+        kind = Kind.END;
+        start = 0;
+        error = null;
+        return this;
+    }
+
+    // Continue lexing input at pos, in the state depth() and expectsOperand()
+    // had there
+    Lexer resume(CharSequence input, int pos, int depth, boolean operand) {
+        reset(input);
+        this.pos = pos;
+        this.start = pos;
+        this.depth = depth;
+        this.operand = operand;
+        return this;
+    }
+
+    // Open parentheses so far
+    int depth() {
+        return depth;
+    }
+
+    // True where an operand (or prefix operator) comes next
+    boolean expectsOperand() {
+        return operand;
+    }
+
+    // Advance to the next token and return its kind
+    Kind next() {
+        if (error != null) {
+            return Kind.ERROR;
+        }
+        int len = input.length();
+        while (pos < len && Character.isWhitespace(input.charAt(pos))) {
+            pos++;
+        }
+        start = pos;
+        if (pos == len) {
+            return depth != 0 ? fail(Calculator.MISSING_OPERATOR) : (kind = Kind.END);
+        }
+        char ch = input.charAt(pos);
+        if (isDigit(ch) || ch == '.') {
+            operand = false;
+            return kind = readNumber();
+        }
+        if (isNameStart(ch)) {
+            return kind = readName();
+        }
+        pos++;
+        if (ch == ',') {
+            if (operand) {
+                return fail(Calculator.MISSING_OPERAND);
+            }
+            operand = true;
+            return kind = Kind.COMMA;
+        }
+        if (ch == '(') {
+            depth++;
+            operand = true;
+            return kind = Kind.LEFT_PAREN;
+        } else if (ch == ')') {
+            if (--depth < 0) {
+                return fail(Calculator.MISSING_OPERATOR);
+            }
+            operand = false;
+            return kind = Kind.RIGHT_PAREN;
+        }
+        operator = operand ? Operator.prefix(ch) : Operator.infix(ch);
+        if (operator == null) {
+            boolean known = Operator.prefix(ch) != null || Operator.infix(ch) != null;
+            return fail(known && !operand ? Calculator.MISSING_OPERATOR : Calculator.MISSING_OPERAND);
+        }
+        operand = true;
+        return kind = Kind.OPERATOR;
+    }
+
+    // Digits with an optional fraction. The value is exact when the digits fit
+    // in 53 bits and the fraction in 22 digits, else the JDK parser is used.
+    private Kind readNumber() {
+        int len = input.length();
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; pos < len; pos++) {
+            char ch = input.charAt(pos);
+            if (isDigit(ch)) {
+                mantissa = mantissa * 10 + (ch - '0');
+                digits++;
+                if (fraction >= 0) {
+                    fraction++;
+                }
+            } else if (ch == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return fail(Calculator.MISSING_OPERAND);
+        }
+        if (digits <= 15 || (digits <= 18 && mantissa < MAX_EXACT)) {
+            number = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+        } else {
+            number = Double.parseDouble(input.subSequence(start, pos).toString());
+        }
+        return Kind.NUMBER;
+    }
+
+    // End of the number literal at start in input, start if there is none.
+    // The same characters as readNumber reads.
+    static int numberEnd(String input, int start) {
+        int pos = start;
+        boolean fraction = false;
+        while (pos < input.length() && (isDigit(input.charAt(pos)) || (input.charAt(pos) == '.' && !fraction))) {
+            fraction |= input.charAt(pos) == '.';
+            pos++;
+        }
+        return pos;
+    }
+
+    private Kind fail(String message) {
+        error = message;
+        return kind = Kind.ERROR;
+    }
+
+    private Kind readName() {
+        int len = input.length();
+        while (pos < len && (isNameStart(input.charAt(pos)) || isDigit(input.charAt(pos)))) {
+            pos++;
+        }
+        nameEnd = pos;
+        int paren = pos;
+        while (paren < len && Character.isWhitespace(input.charAt(paren))) {
+            paren++;
+        }
+        if (paren == len || input.charAt(paren) != '(') {
+            operand = false;
+            return Kind.NAME;
+        }
+        function = MathFunction.byName(name());
+        if (function == null) {
+            return fail(Calculator.OP_NOT_FOUND);
+        }
+        pos = paren + 1;
+        depth++;
+        operand = true;
+        return Kind.FUNCTION;
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private static boolean isNameStart(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_';
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    // Message of an ERROR token
+    String error() {
+        return error;
+    }
+
+    double number() {
+        return number;
+    }
+
+    Operator operator() {
+        return operator;
+    }
+
+    // Function of the current FUNCTION token
+    MathFunction function() {
+        return function;
+    }
+
+    // Text of the current NAME token, or the name of a FUNCTION
+    String name() {
+        return input.subSequence(start, nameEnd).toString();
+    }
+
+    // Position of the current token in the input
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return pos;
+    }
+
+    // Lex all of input into tokens, which is cleared first. Throws
+    // IllegalArgumentException on bad input.
+    Tokens lex(CharSequence input, Tokens tokens) {
+        reset(input);
+        tokens.clear();
+        for (Kind k = next(); k != Kind.END; k = next()) {
+            if (k == Kind.ERROR) {
+                throw new IllegalArgumentException(error);
+            }
+            tokens.add(kind, number, operator, start, pos);
+        }
+        return tokens;
+    }
+
+    // --- A reusable, growable token buffer -----------
+
+    static final class Tokens {
+        private static final Kind[] KINDS = Kind.values();
+
+        private byte[] kinds = new byte[16];
+        private double[] numbers = new double[16];
+        private Operator[] operators = new Operator[16];
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int size;
+
+        void add(Kind kind, double number, Operator operator, int start, int end) {
+            if (size == kinds.length) {
+                grow();
+            }
+            kinds[size] = (byte) kind.ordinal();
+            numbers[size] = number;
+            operators[size] = operator;
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        private void grow() {
+            int n = size * 2;
+            kinds = Arrays.copyOf(kinds, n);
+            numbers = Arrays.copyOf(numbers, n);
+            operators = Arrays.copyOf(operators, n);
+            starts = Arrays.copyOf(starts, n);
+            ends = Arrays.copyOf(ends, n);
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        Kind kind(int i) {
+            return KINDS[kinds[i]];
+        }
+
+        double number(int i) {
+            return numbers[i];
+        }
+
+        Operator operator(int i) {
+            return operators[i];
+        }
+
+        int start(int i) {
+            return starts[i];
+        }
+
+        int end(int i) {
+            return ends[i];
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.out;
+
+/**
+ * Load generator for WebCalcServer
+ *
+ * Replays a corpus of expressions (one per line) or a synthetic mix against a
+ * running server, or one started in this JVM with --local. Requests are sent
+ * with java.net.http.HttpClient from virtual threads (a thread pool on JDKs
+ * without them).
+ *
+ * Closed loop (--closed n): n clients, each sends its next request when the
+ * last one is answered. Open loop (--open rate): requests are due at a fixed
+ * rate per second, whether or not earlier ones have been answered.
+ *
+ * Two latencies are reported. latency is from sending a request to its
+ * response. corrected accounts for coordinated omission: in open loop it is
+ * measured from when the request was due, in closed loop a response slower
+ * than the expected interval (--interval ms, else the mean of the warm up)
+ * also records the requests that would have been sent meanwhile, like
+ * HdrHistogram's recordValueWithExpectedInterval.
+ *
+ * Run: java LoadTest [--url u | --local] [--closed n | --open rate] [--seconds s]
+ *      [--warmup s] [--interval ms] [--corpus file] [--form] [--save file] [--baseline file]
+ *  --form posts to the page instead of the JSON endpoint, --save writes the
+ *  report as name value lines, --baseline compares with a saved report
+ */
+class LoadTest {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadTest test = new LoadTest();
+        Path corpus = null;
+        Path baseline = null;
+        Path save = null;
+        String url = null;
+        boolean local = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url":
+                    url = args[++i];
+                    break;
+                case "--local":
+                    local = true;
+                    break;
+                case "--closed":
+                    test.concurrency = Integer.parseInt(args[++i]);
+                    test.rate = 0;
+                    break;
+                case "--open":
+                    test.rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--seconds":
+                    test.seconds = Double.parseDouble(args[++i]);
+                    break;
+                case "--warmup":
+                    test.warmup = Double.parseDouble(args[++i]);
+                    break;
+                case "--interval":
+                    test.interval = (long) (Double.parseDouble(args[++i]) * 1e6);
+                    break;
+                case "--corpus":
+                    corpus = Paths.get(args[++i]);
+                    break;
+                case "--form":
+                    test.form = true;
+                    break;
+                case "--save":
+                    save = Paths.get(args[++i]);
+                    break;
+                case "--baseline":
+                    baseline = Paths.get(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (local) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            WebCalcServer.main(new String[]{"--port", String.valueOf(port), "--log", "off"});
+            url = "http://localhost:" + port;
+        }
+        URI base = URI.create(url != null ? url : "http://localhost:8080");
+        test.prepare(base, corpus != null ? corpus(corpus) : synthetic(SYNTHETIC_SIZE, new Random(42)));
+        test.runAll();
+        test.report(baseline, save);
+        // The server started by --local has non-daemon threads
+        System.exit(0);
+    }
+
+    static final int SYNTHETIC_SIZE = 1000;
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+
+    int concurrency = 16;
+    double rate;                // Requests per second, 0 for closed loop
+    double seconds = 10;
+    double warmup = 2;
+    long interval;              // Expected interval (ns) in closed loop, 0 to use the warm up
+    boolean form;
+
+    private final ExecutorService workers = Workers.virtualOrFixed(256);
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(workers)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    // Built once, HttpRequest is immutable
+    private final List<HttpRequest> requests = new ArrayList<>();
+    private final AtomicLong next = new AtomicLong();
+    final Map<String, Double> results = new LinkedHashMap<>();
+
+    // Latencies and failures of one run
+    static final class Run {
+        final Metrics.Histogram latency = new Metrics.Histogram();
+        final Metrics.Histogram corrected = new Metrics.Histogram();
+        final LongAdder errors = new LongAdder();
+        long nanos;
+
+        // Closed loop, also records the requests a slow response held back
+        void record(long nanos, long interval) {
+            latency.record(nanos);
+            corrected.record(nanos);
+            if (interval > 0) {
+                for (long missed = nanos - interval; missed >= interval; missed -= interval) {
+                    corrected.record(missed);
+                }
+            }
+        }
+    }
+
+    void prepare(URI base, List<String> exprs) {
+        URI uri = base.resolve(form ? "/" : "/api/eval");
+        for (String expr : exprs) {
+            String body = form
+                    ? "Expression=" + URLEncoder.encode(expr, StandardCharsets.UTF_8)
+                    : "{\"expr\":" + WebCalcServer.JsonRequest.quote(expr) + "}";
+            requests.add(HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Content-Type", form ? "application/x-www-form-urlencoded" : "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build());
+        }
+    }
+
+    void runAll() throws InterruptedException {
+        String mode = rate > 0 ? "open loop at " + rate + "/s" : "closed loop with " + concurrency + " clients";
+        out.println("Warming up for " + warmup + " s, " + mode);
+        Run warm = rate > 0 ? open(warmup) : closed(warmup, 0);
+        if (rate == 0 && interval == 0 && warm.latency.count() > 0) {
+            interval = warm.latency.sum() / warm.latency.count();
+        }
+        out.println("Measuring for " + seconds + " s");
+        Run run = rate > 0 ? open(seconds) : closed(seconds, interval);
+        long completed = run.latency.count();
+        results.put("requests", (double) completed);
+        results.put("errors", (double) run.errors.sum());
+        results.put("throughput", completed * 1e9 / run.nanos);
+        for (double q : QUANTILES) {
+            results.put("latency." + name(q), run.latency.valueAt(q) / 1e6);
+        }
+        for (double q : QUANTILES) {
+            results.put("corrected." + name(q), run.corrected.valueAt(q) / 1e6);
+        }
+    }
+
+    Run closed(double secs, long expected) throws InterruptedException {
+        Run run = new Run();
+        long start = System.nanoTime();
+        long end = start + (long) (secs * 1e9);
+        List<Callable<Void>> clients = new ArrayList<>();
+        for (int c = 0; c < concurrency; c++) {
+            clients.add(() -> {
+                while (System.nanoTime() < end) {
+                    long sent = System.nanoTime();
+                    if (send(run)) {
+                        run.record(System.nanoTime() - sent, expected);
+                    }
+                }
+                return null;
+            });
+        }
+        workers.invokeAll(clients);
+        run.nanos = System.nanoTime() - start;
+        return run;
+    }
+
+    Run open(double secs) throws InterruptedException {
+        Run run = new Run();
+        long period = (long) (1e9 / rate);
+        int n = (int) (secs * rate);
+        CountDownLatch done = new CountDownLatch(n);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            long due = start + i * period;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            workers.execute(() -> {
+                try {
+                    long sent = System.nanoTime();
+                    if (send(run)) {
+                        long now = System.nanoTime();
+                        run.latency.record(now - sent);
+                        run.corrected.record(now - due);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        run.nanos = System.nanoTime() - start;
+        return run;
+    }
+
+    // Send the next request of the corpus, false if it failed
+    private boolean send(Run run) {
+        HttpRequest request = requests.get((int) (next.getAndIncrement() % requests.size()));
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() == 200) {
+                return true;
+            }
+        } catch (IOException e) {
+            // Counted below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        run.errors.increment();
+        return false;
+    }
+
+    private static String name(double q) {
+        return q == 1.0 ? "max" : "p" + String.valueOf(q * 100).replace(".0", "").replace(".", "");
+    }
+
+    // Non blank lines of file
+    static List<String> corpus(Path file) throws IOException {
+        List<String> exprs = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            if (!line.isBlank()) {
+                exprs.add(line.trim());
+            }
+        }
+        if (exprs.isEmpty()) {
+            throw new IllegalArgumentException("No expressions in " + file);
+        }
+        return exprs;
+    }
+
+    // Mostly short expressions, some long ones and one in ten invalid
+    static List<String> synthetic(int n, Random rnd) {
+        List<String> exprs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int kind = rnd.nextInt(10);
+            if (kind < 7) {
+                exprs.add(Bench.generate(4 + rnd.nextInt(12), rnd));
+            } else if (kind < 9) {
+                exprs.add(Bench.generate(100 + rnd.nextInt(400), rnd));
+            } else {
+                String expr = Bench.generate(4 + rnd.nextInt(12), rnd);
+                exprs.add(rnd.nextBoolean() ? expr + " *" : expr + " / 0");
+            }
+        }
+        return exprs;
+    }
+
+    void report(Path baseline, Path save) throws IOException {
+        out.println();
+        for (Map.Entry<String, Double> r : results.entrySet()) {
+            out.printf("%-20s %14.3f%n", r.getKey(), r.getValue());
+        }
+        out.println("(latencies in ms)");
+        if (save != null) {
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, Double> r : results.entrySet()) {
+                lines.add(r.getKey() + " " + r.getValue());
+            }
+            Files.write(save, lines);
+        }
+        if (baseline != null) {
+            out.println();
+            out.println("Compared with " + baseline + " (new / old)");
+            for (String line : Files.readAllLines(baseline)) {
+                String[] parts = line.trim().split(" ");
+                Double now = results.get(parts[0]);
+                if (now != null) {
+                    out.printf("%-20s %8.2fx%n", parts[0], now / Math.max(1e-9, Double.parseDouble(parts[1])));
+                }
+            }
+        }
+    }
+}
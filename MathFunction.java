@@ -0,0 +1,319 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/*
+ *   The function table of the Calculator, for calls like sqrt(x) or max(a, b, c)
+ *
+ *   A function has a name, a number of arguments (a range, max is variadic)
+ *   and how to apply it: a DoubleUnaryOperator or DoubleBinaryOperator for
+ *   one or two arguments, else a Body over the arguments on the stack. A call
+ *   is one CALL instruction in CompiledExpression, whose operand holds the
+ *   function id and the number of arguments given.
+ *
+ *   The built in functions are pure, Optimizer folds them on constants and
+ *   Jit binds them as constants, so Math.sqrt and the other JVM intrinsics
+ *   end up inlined. exp, log and pow have a fast sibling (see fast()), used
+ *   when an EvalContext asks for fast math: approximations with a bounded
+ *   error that avoid the corner case handling of the JDK methods.
+ *
+ *   Extra functions are added with register, like operators. They need not
+ *   be pure and are never folded or shared.
+ */
+final class MathFunction {
+
+    // Arguments args[from] to args[from + count - 1]
+    interface Body {
+        double apply(double[] args, int from, int count);
+    }
+
+    // Largest number of arguments of a variadic function, the argument count
+    // of a call is kept in the instruction
+    static final int MAX_ARGS = (1 << CompiledExpression.ARGC_BITS) - 1;
+
+    // Integer exponents up to this are computed by repeated squaring in fast math
+    static final int MAX_INT_EXPONENT = 64;
+
+    private static volatile MathFunction[] byId = new MathFunction[0];
+    private static final Map<String, MathFunction> byName = new ConcurrentHashMap<>();
+    // Bumped on every change of the table, see ExpressionCache
+    private static volatile int version;
+
+    static final MathFunction SQRT = register(unary("sqrt", Math::sqrt).builtIn());
+    static final MathFunction ABS = register(unary("abs", Math::abs).builtIn());
+    static final MathFunction EXP = register(unary("exp", Math::exp).builtIn().withFast(MathFunction::fastExp));
+    static final MathFunction LOG = register(unary("log", Math::log).builtIn().withFast(MathFunction::fastLog));
+    static final MathFunction LOG10 = register(unary("log10", Math::log10).builtIn());
+    static final MathFunction SIN = register(unary("sin", Math::sin).builtIn());
+    static final MathFunction COS = register(unary("cos", Math::cos).builtIn());
+    static final MathFunction TAN = register(unary("tan", Math::tan).builtIn());
+    static final MathFunction ASIN = register(unary("asin", Math::asin).builtIn());
+    static final MathFunction ACOS = register(unary("acos", Math::acos).builtIn());
+    static final MathFunction ATAN = register(unary("atan", Math::atan).builtIn());
+    static final MathFunction FLOOR = register(unary("floor", Math::floor).builtIn());
+    static final MathFunction CEIL = register(unary("ceil", Math::ceil).builtIn());
+    static final MathFunction POW = register(binary("pow", MathFunction::power).builtIn()
+            .withFast(MathFunction::fastPow));
+    static final MathFunction HYPOT = register(binary("hypot", Math::hypot).builtIn());
+    static final MathFunction ATAN2 = register(binary("atan2", Math::atan2).builtIn());
+    static final MathFunction MIN = register(variadic("min", 1, MAX_ARGS, MathFunction::min).builtIn());
+    static final MathFunction MAX = register(variadic("max", 1, MAX_ARGS, MathFunction::max).builtIn());
+
+    final String name;
+    final int minArgs;
+    final int maxArgs;
+    // One of these is set, Jit binds it as a constant
+    final DoubleUnaryOperator unary;
+    final DoubleBinaryOperator binary;
+    final Body body;
+    private boolean pure;
+    private MathFunction fast = this;
+    private int id = -1;
+
+    private MathFunction(String name, int minArgs, int maxArgs,
+                         DoubleUnaryOperator unary, DoubleBinaryOperator binary, Body body) {
+        this.name = name;
+        this.minArgs = minArgs;
+        this.maxArgs = maxArgs;
+        this.unary = unary;
+        this.binary = binary;
+        this.body = body;
+    }
+
+    // A function of one argument
+    static MathFunction unary(String name, DoubleUnaryOperator apply) {
+        return new MathFunction(name, 1, 1, apply, null, null);
+    }
+
+    // A function of two arguments
+    static MathFunction binary(String name, DoubleBinaryOperator apply) {
+        return new MathFunction(name, 2, 2, null, apply, null);
+    }
+
+    // A function of minArgs to maxArgs (at most MAX_ARGS) arguments
+    static MathFunction variadic(String name, int minArgs, int maxArgs, Body apply) {
+        if (minArgs < 0 || maxArgs < minArgs || maxArgs > MAX_ARGS) {
+            throw new IllegalArgumentException("Bad number of arguments for " + name);
+        }
+        return new MathFunction(name, minArgs, maxArgs, null, null, apply);
+    }
+
+    private MathFunction builtIn() {
+        pure = true;
+        return this;
+    }
+
+    private MathFunction withFast(DoubleUnaryOperator apply) {
+        fast = unary(name, apply).builtIn();
+        return this;
+    }
+
+    private MathFunction withFast(DoubleBinaryOperator apply) {
+        fast = binary(name, apply).builtIn();
+        return this;
+    }
+
+    // Add a function to the table, replaces any function of the same name.
+    // A fast sibling gets an id but no name, it is only reached by fast().
+    static synchronized MathFunction register(MathFunction fn) {
+        if (fn.name.isEmpty() || (!Character.isLetter(fn.name.charAt(0)) && fn.name.charAt(0) != '_')) {
+            throw new IllegalArgumentException("Bad function name " + fn.name);
+        }
+        if (fn.id >= 0) {
+            throw new IllegalArgumentException("Function already registered " + fn.name);
+        }
+        if (byId.length + 2 > 1 << (32 - CompiledExpression.OP_BITS - CompiledExpression.ARGC_BITS)) {
+            throw new IllegalArgumentException("Too many functions");
+        }
+        MathFunction[] ids = Arrays.copyOf(byId, byId.length + (fn.fast != fn ? 2 : 1));
+        fn.id = byId.length;
+        ids[fn.id] = fn;
+        if (fn.fast != fn) {
+            fn.fast.id = fn.id + 1;
+            ids[fn.fast.id] = fn.fast;
+        }
+        byName.put(fn.name, fn);
+        byId = ids;
+        version++;
+        return fn;
+    }
+
+    // Changes with every register
+    static int version() {
+        return version;
+    }
+
+    // Function called name, null if there is none
+    static MathFunction byName(String name) {
+        return byName.get(name);
+    }
+
+    static MathFunction byId(int id) {
+        return byId[id];
+    }
+
+    // Functions registered, ids are below this
+    static int count() {
+        return byId.length;
+    }
+
+    // Index in the registry, see byId
+    int id() {
+        return id;
+    }
+
+    // The sibling used in fast math, this function if it has none
+    MathFunction fast() {
+        return fast;
+    }
+
+    // Built in functions depend on their arguments only, registered ones
+    // may have side effects or depend on state
+    boolean isPure() {
+        return pure;
+    }
+
+    boolean accepts(int count) {
+        return count >= minArgs && count <= maxArgs;
+    }
+
+    // The CompiledExpression instruction calling this function with count arguments
+    int instruction(int count) {
+        return CompiledExpression.CALL
+                | (((id << CompiledExpression.ARGC_BITS) | count) << CompiledExpression.OP_BITS);
+    }
+
+    double apply(double a) {
+        return unary.applyAsDouble(a);
+    }
+
+    double apply(double a, double b) {
+        return binary.applyAsDouble(a, b);
+    }
+
+    double apply(double[] args, int from, int count) {
+        if (body != null) {
+            return body.apply(args, from, count);
+        }
+        return unary != null ? unary.applyAsDouble(args[from]) : binary.applyAsDouble(args[from], args[from + 1]);
+    }
+
+    boolean isUnary() {
+        return unary != null;
+    }
+
+    boolean isBinary() {
+        return binary != null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    // ---------- The built in functions -------
+
+    // a ^ b, the same value as Math.pow. Exponents 0, 1 and 2 skip the call,
+    // Math.pow gives exactly 1, a and a * a for them (not so 1 / a for -1).
+    // All evaluators compute ^ with this, so they agree to the bit.
+    static double power(double a, double b) {
+        if (b == 2) {
+            return a * a;
+        }
+        if (b == 1) {
+            return a;
+        }
+        if (b == 0) {
+            return 1;
+        }
+        return Math.pow(a, b);
+    }
+
+    // a ^ n by repeated squaring, within a few ulps of Math.pow for |n| up
+    // to MAX_INT_EXPONENT
+    private static double squaring(double a, int n) {
+        double base = a;
+        double r = 1;
+        for (int k = Math.abs(n); k != 0; k >>= 1) {
+            if ((k & 1) != 0) {
+                r *= a;
+            }
+            a *= a;
+        }
+        if (n < 0) {
+            r = 1 / r;
+        }
+        // Overflow or underflow on the way may round differently
+        return r == 0 || Double.isInfinite(r) ? Math.pow(base, n) : r;
+    }
+
+    private static double min(double[] args, int from, int count) {
+        double m = args[from];
+        for (int i = from + 1; i < from + count; i++) {
+            m = Math.min(m, args[i]);
+        }
+        return m;
+    }
+
+    private static double max(double[] args, int from, int count) {
+        double m = args[from];
+        for (int i = from + 1; i < from + count; i++) {
+            m = Math.max(m, args[i]);
+        }
+        return m;
+    }
+
+    // ---------- Fast math, bounded error -------
+
+    private static final double LN2 = 0.6931471805599453;
+    private static final double LN2_HI = 0.6931471803691238;    // Upper 32 bits of ln 2
+    private static final double LN2_LO = 1.9082149292705877e-10;
+    private static final double INV_LN2 = 1.4426950408889634;
+
+    // e^x with a relative error below 2e-7: x = k ln 2 + r with |r| <= ln 2 / 2,
+    // then 2^k times a degree 6 Taylor polynomial of e^r
+    static double fastExp(double x) {
+        if (!(x > -708 && x < 709)) {
+            return Math.exp(x);
+        }
+        double k = Math.rint(x * INV_LN2);
+        double r = x - k * LN2_HI - k * LN2_LO;
+        double p = 1 + r * (1 + r * (1.0 / 2 + r * (1.0 / 6 + r * (1.0 / 24 + r * (1.0 / 120 + r * (1.0 / 720))))));
+        return p * Double.longBitsToDouble((long) (k + 1023) << 52);
+    }
+
+    // ln x with an absolute error below 1e-9: x = 2^e m with m in
+    // [sqrt(1/2), sqrt(2)), ln m = 2 atanh(s) with s = (m - 1) / (m + 1) as
+    // a series to s^9
+    static double fastLog(double x) {
+        if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) {
+            return Math.log(x);
+        }
+        long bits = Double.doubleToRawLongBits(x);
+        int e = (int) (bits >>> 52) - 1023;
+        double m = Double.longBitsToDouble((bits & 0x000F_FFFF_FFFF_FFFFL) | 0x3FF0_0000_0000_0000L);
+        if (m > 1.4142135623730951) {
+            m *= 0.5;
+            e++;
+        }
+        double s = (m - 1) / (m + 1);
+        double s2 = s * s;
+        double atanh = s * (1 + s2 * (1.0 / 3 + s2 * (1.0 / 5 + s2 * (1.0 / 7 + s2 * (1.0 / 9)))));
+        return e * LN2 + 2 * atanh;
+    }
+
+    // a ^ b by repeated squaring for small integer b (exact where the
+    // product is, as for powers of two), else e^(b ln a) for a > 0
+    static double fastPow(double a, double b) {
+        int n = (int) b;
+        if (n == b && n >= -MAX_INT_EXPONENT && n <= MAX_INT_EXPONENT) {
+            return squaring(a, n);
+        }
+        if (!(a > 0)) {
+            return power(a, b);
+        }
+        return fastExp(b * fastLog(a));
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *   Counters and latency histograms for a Calculator
+ *
+ *   Recording is off until enabled, then each evaluation costs a few
+ *   System.nanoTime calls and atomic increments. While off the only cost is
+ *   reading one volatile boolean. Can be switched on and off at any time.
+ *
+ *   Histograms are log-linear like HdrHistogram: values are bucketed by their
+ *   highest bit and the next SUB_BITS bits, so any recorded value is known
+ *   within 1/8 of itself, with fixed memory and no locking.
+ */
+final class Metrics {
+
+    enum Stage {
+        TOKENIZE,
+        INFIX2POSTFIX,
+        EVAL_POSTFIX,
+        COMPILE,        // Lex and parse to a CompiledExpression, on cache misses
+        EVAL,           // Run a CompiledExpression
+        TOTAL           // Calculator.eval, including the cache lookup
+    }
+
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private volatile boolean enabled;
+    private final LongAdder evaluations = new LongAdder();
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final LongAdder[] errors = new LongAdder[Result.Code.VALUES.length];
+    private final Histogram expressionLength = new Histogram();
+    // What the Optimizer did on compiles, see Optimizer's statistics
+    private final LongAdder removed = new LongAdder();
+    private final LongAdder folded = new LongAdder();
+    private final LongAdder identities = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    Metrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // An evaluation of an expression of the given length started
+    void evaluation(int length) {
+        evaluations.increment();
+        expressionLength.record(length);
+    }
+
+    void time(Stage stage, long startNanos) {
+        stages[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    void error(Result.Code code) {
+        errors[code.ordinal()].increment();
+    }
+
+    // An expression was compiled with optimizer, which has run on it only
+    void optimized(Optimizer optimizer) {
+        removed.add(optimizer.removed());
+        folded.add(optimizer.folded());
+        identities.add(optimizer.identities());
+        shared.add(optimizer.shared());
+    }
+
+    long evaluations() {
+        return evaluations.sum();
+    }
+
+    long errors(Result.Code code) {
+        return errors[code.ordinal()].sum();
+    }
+
+    Histogram stage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    Histogram expressionLength() {
+        return expressionLength;
+    }
+
+    // Instructions the Optimizer removed, over all compiles
+    long removed() {
+        return removed.sum();
+    }
+
+    long folded() {
+        return folded.sum();
+    }
+
+    long identities() {
+        return identities.sum();
+    }
+
+    long shared() {
+        return shared.sum();
+    }
+
+    // All metrics in the Prometheus text format, cache may be null
+    String toPrometheus(ExpressionCache cache) {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "calculator_evaluations_total", "Expressions evaluated", evaluations());
+        sb.append("# HELP calculator_errors_total Failed evaluations by error\n");
+        sb.append("# TYPE calculator_errors_total counter\n");
+        for (Result.Code e : Result.Code.VALUES) {
+            sb.append("calculator_errors_total{error=\"").append(e).append("\"} ")
+                    .append(errors(e)).append('\n');
+        }
+        sb.append("# HELP calculator_stage_seconds Time spent per stage\n");
+        sb.append("# TYPE calculator_stage_seconds summary\n");
+        for (Stage s : Stage.values()) {
+            String label = "stage=\"" + s.name().toLowerCase(Locale.ROOT) + "\"";
+            stage(s).appendSummary(sb, "calculator_stage_seconds", label, 1e-9);
+        }
+        sb.append("# HELP calculator_expression_length Length of evaluated expressions in chars\n");
+        sb.append("# TYPE calculator_expression_length summary\n");
+        expressionLength.appendSummary(sb, "calculator_expression_length", null, 1);
+        counter(sb, "calculator_optimizer_removed_total", "Instructions removed by the optimizer", removed());
+        sb.append("# HELP calculator_optimizer_simplified_total Subexpressions simplified by the optimizer\n");
+        sb.append("# TYPE calculator_optimizer_simplified_total counter\n");
+        sb.append("calculator_optimizer_simplified_total{kind=\"folded\"} ").append(folded()).append('\n');
+        sb.append("calculator_optimizer_simplified_total{kind=\"identity\"} ").append(identities()).append('\n');
+        sb.append("calculator_optimizer_simplified_total{kind=\"shared\"} ").append(shared()).append('\n');
+        if (cache != null) {
+            counter(sb, "calculator_cache_hits_total", "Compiled expression cache hits", cache.hits());
+            counter(sb, "calculator_cache_misses_total", "Compiled expression cache misses", cache.misses());
+            counter(sb, "calculator_cache_evictions_total", "Compiled expression cache evictions", cache.evictions());
+            sb.append("# HELP calculator_cache_size Compiled expressions in the cache\n");
+            sb.append("# TYPE calculator_cache_size gauge\n");
+            sb.append("calculator_cache_size ").append(cache.size()).append('\n');
+        }
+        counter(sb, "calculator_eval_contexts_created_total", "Evaluation contexts created, flat in steady state",
+                EvalContext.created());
+        counter(sb, "calculator_eval_context_grows_total", "Evaluation context stacks grown", EvalContext.grown());
+        sb.append("# HELP calculator_metrics_enabled 1 while metrics are recorded\n");
+        sb.append("# TYPE calculator_metrics_enabled gauge\n");
+        sb.append("calculator_metrics_enabled ").append(enabled ? 1 : 0).append('\n');
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    // --- A lock free log-linear histogram of non negative longs -----------
+
+    static final class Histogram {
+        static final int SUB_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(index(v));
+            count.increment();
+            sum.add(v);
+        }
+
+        static int index(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int) v;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        // Largest value that lands in bucket index
+        static long highestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return low + (1L << shift) - 1;
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        // Value at quantile q (0..1), as the upper bound of its bucket
+        long valueAt(double q) {
+            long total = 0;
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        void appendSummary(StringBuilder sb, String name, String labels, double scale) {
+            String prefix = labels == null ? "" : labels + ",";
+            for (double q : QUANTILES) {
+                sb.append(name).append('{').append(prefix).append("quantile=\"").append(q).append("\"} ")
+                        .append(valueAt(q) * scale).append('\n');
+            }
+            String tail = labels == null ? " " : "{" + labels + "} ";
+            sb.append(name).append("_sum").append(tail).append(sum() * scale).append('\n');
+            sb.append(name).append("_count").append(tail).append(count()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,483 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.Arrays;
+
+/*
+ *   A number type to evaluate CompiledExpressions in
+ *
+ *   DOUBLE is the plain engine, decimal(mc) computes in BigDecimal rounded to
+ *   mc and RATIONAL is exact. All run the same program from the same Parser.
+ *
+ *   The slow types share a fast path: a value stays a long while it is an
+ *   integer and the operations on it are exact (no overflow, no fraction,
+ *   within the precision of mc). Only then is it promoted to the number type
+ *   and the operation done there, so integer heavy input allocates nothing
+ *   until the result.
+ *
+ *   Constants are taken as written, BigDecimal.valueOf(0.1) is 0.1. Up to 15
+ *   digits the double of the lexer holds a literal exactly enough for that,
+ *   longer ones are read again from the source text when eval is given it
+ *   (as by Calculator.eval), else they are the nearest double. ^ needs an
+ *   integer exponent (NOT_EXACT otherwise), registered operators and function
+ *   calls are computed in double.
+ */
+abstract class Numeric<T> {
+
+    static final Numeric<Double> DOUBLE = new Doubles();
+    static final Numeric<Rational> RATIONAL = new Rationals();
+
+    static Numeric<BigDecimal> decimal(MathContext mc) {
+        return new Decimals(mc);
+    }
+
+    // Largest long that is also an exact double
+    private static final long MAX_EXACT = 1L << 53;
+    private static final BigDecimal LONG_MAX = BigDecimal.valueOf(Long.MAX_VALUE);
+
+    // --- The number type -----------
+
+    abstract T valueOf(long n);
+
+    // A constant, as written
+    abstract T valueOf(double constant);
+
+    // A literal of more digits than a double holds
+    abstract T valueOf(BigDecimal literal);
+
+    abstract T add(T a, T b);
+
+    abstract T subtract(T a, T b);
+
+    abstract T multiply(T a, T b);
+
+    abstract T divide(T a, T b);
+
+    abstract T remainder(T a, T b);
+
+    abstract T pow(T a, T b);
+
+    abstract T negate(T a);
+
+    abstract double doubleValue(T a);
+
+    // True if n is represented exactly, results in long are only kept then
+    boolean exact(long n) {
+        return true;
+    }
+
+    // --- Interpreter -----------
+
+    // Value of expr with variable slot k bound to vars[k]
+    T eval(CompiledExpression expr, double... vars) {
+        return eval(null, expr, vars);
+    }
+
+    // As eval(expr, vars) for expr parsed from source, its constants are
+    // taken from their text there
+    T eval(String source, CompiledExpression expr, double... vars) {
+        expr.checkBound(vars.length);
+        int size = Math.max(1, expr.stackSize());
+        EvalContext context = EvalContext.acquire();
+        Object[] slow = context.objects(size);  // null where fast holds the value
+        try {
+            return eval(source, expr, vars, context.longs(size), slow, context.stack(size));
+        } finally {
+            Arrays.fill(slow, 0, size, null);
+            context.release();
+        }
+    }
+
+    // The stacks come from an EvalContext, slow is all null up to the stack
+    // size. Arguments of a call are on the stack, so they fit in args too
+    private T eval(String source, CompiledExpression expr, double[] vars, long[] fast, Object[] slow,
+                   double[] args) {
+        int[] code = expr.code();
+        int[] positions = expr.positions();
+        double[] constants = expr.constants();
+        int tempBase = expr.tempBase();
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            int instr = code[pc];
+            int arg = instr >>> CompiledExpression.OP_BITS;
+            int op = instr & CompiledExpression.OP_MASK;
+            switch (op) {
+                case CompiledExpression.CONST:
+                    if (source != null && positions[pc] >= 0) {
+                        load(source, positions[pc], constants[arg], fast, slow, sp++);
+                    } else {
+                        load(constants[arg], fast, slow, sp++);
+                    }
+                    break;
+                case CompiledExpression.VAR:
+                    load(vars[arg], fast, slow, sp++);
+                    break;
+                case CompiledExpression.STORE:
+                    fast[tempBase + arg] = fast[sp - 1];
+                    slow[tempBase + arg] = slow[sp - 1];
+                    break;
+                case CompiledExpression.LOAD:
+                    fast[sp] = fast[tempBase + arg];
+                    slow[sp++] = slow[tempBase + arg];
+                    break;
+                case CompiledExpression.NEG:
+                    if (slow[sp - 1] == null && fast[sp - 1] != Long.MIN_VALUE) {
+                        fast[sp - 1] = -fast[sp - 1];
+                    } else {
+                        slow[sp - 1] = negate(value(fast, slow, sp - 1));
+                    }
+                    break;
+                case CompiledExpression.UNARY:
+                    double a = Operator.byId(arg).apply(doubleValue(value(fast, slow, sp - 1)));
+                    slow[sp - 1] = valueOf(a);
+                    break;
+                case CompiledExpression.BINARY:
+                    sp--;
+                    double b = Operator.byId(arg).apply(doubleValue(value(fast, slow, sp - 1)),
+                            doubleValue(value(fast, slow, sp)));
+                    slow[sp - 1] = valueOf(b);
+                    break;
+                case CompiledExpression.CALL:
+                    int argc = arg & CompiledExpression.ARGC_MASK;
+                    for (int k = 0; k < argc; k++) {
+                        args[k] = doubleValue(value(fast, slow, sp - argc + k));
+                    }
+                    sp -= argc - 1;
+                    slow[sp - 1] = valueOf(CompiledExpression.function(arg).apply(args, 0, argc));
+                    break;
+                default:
+                    sp--;
+                    if (slow[sp - 1] != null || slow[sp] != null
+                            || !fastBinary(op, fast, sp - 1, fast[sp - 1], fast[sp])) {
+                        slow[sp - 1] = slowBinary(op, value(fast, slow, sp - 1), value(fast, slow, sp));
+                    }
+                    break;
+            }
+        }
+        return value(fast, slow, 0);
+    }
+
+    private void load(double constant, long[] fast, Object[] slow, int i) {
+        if (constant == Math.rint(constant) && Math.abs(constant) <= MAX_EXACT && exact((long) constant)) {
+            fast[i] = (long) constant;
+            slow[i] = null;
+        } else {
+            slow[i] = valueOf(constant);
+        }
+    }
+
+    // The literal at start in source, whose double is constant
+    private void load(String source, int start, double constant, long[] fast, Object[] slow, int i) {
+        int end = Lexer.numberEnd(source, start);
+        if (end - start <= 15) {
+            load(constant, fast, slow, i);
+            return;
+        }
+        BigDecimal literal = new BigDecimal(source.substring(start, end));
+        if (literal.stripTrailingZeros().scale() <= 0 && literal.compareTo(LONG_MAX) <= 0) {
+            long n = literal.longValue();
+            if (exact(n)) {
+                fast[i] = n;
+                slow[i] = null;
+                return;
+            }
+        }
+        slow[i] = valueOf(literal);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T value(long[] fast, Object[] slow, int i) {
+        return slow[i] != null ? (T) slow[i] : valueOf(fast[i]);
+    }
+
+    // fast[i] = a op b if that is exact in long, false otherwise
+    private boolean fastBinary(int op, long[] fast, int i, long a, long b) {
+        long r;
+        switch (op) {
+            case CompiledExpression.ADD:
+                r = a + b;
+                if (((a ^ r) & (b ^ r)) < 0) {
+                    return false;
+                }
+                break;
+            case CompiledExpression.SUB:
+                r = a - b;
+                if (((a ^ b) & (a ^ r)) < 0) {
+                    return false;
+                }
+                break;
+            case CompiledExpression.MUL:
+                r = a * b;
+                if (Math.multiplyHigh(a, b) != (r >> 63)) {
+                    return false;
+                }
+                break;
+            case CompiledExpression.DIV:
+                if (b == 0) {
+                    throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+                }
+                if (a % b != 0 || (a == Long.MIN_VALUE && b == -1)) {
+                    return false;
+                }
+                r = a / b;
+                break;
+            case CompiledExpression.MOD:
+                if (b == 0) {
+                    throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+                }
+                r = a % b;
+                break;
+            case CompiledExpression.POW:
+                if (b < 0) {
+                    return false;
+                }
+                r = 1;
+                // Repeated squaring, gives up on overflow
+                for (long base = a, n = b; n != 0; n >>= 1) {
+                    if ((n & 1) != 0) {
+                        if (Math.multiplyHigh(r, base) != (r * base >> 63)) {
+                            return false;
+                        }
+                        r *= base;
+                    }
+                    if (n > 1) {
+                        if (Math.multiplyHigh(base, base) != (base * base >> 63)) {
+                            return false;
+                        }
+                        base *= base;
+                    }
+                }
+                break;
+            default:
+                throw new RuntimeException(Calculator.OP_NOT_FOUND);
+        }
+        if (!exact(r)) {
+            return false;
+        }
+        fast[i] = r;
+        return true;
+    }
+
+    private T slowBinary(int op, T a, T b) {
+        switch (op) {
+            case CompiledExpression.ADD:
+                return add(a, b);
+            case CompiledExpression.SUB:
+                return subtract(a, b);
+            case CompiledExpression.MUL:
+                return multiply(a, b);
+            case CompiledExpression.DIV:
+                return divide(a, b);
+            case CompiledExpression.MOD:
+                return remainder(a, b);
+            case CompiledExpression.POW:
+                return pow(a, b);
+            default:
+                throw new RuntimeException(Calculator.OP_NOT_FOUND);
+        }
+    }
+
+    // --- double, the same as CompiledExpression.eval -----------
+
+    private static final class Doubles extends Numeric<Double> {
+
+        @Override
+        Double eval(CompiledExpression expr, double... vars) {
+            return expr.eval(vars);
+        }
+
+        // The lexer's double is the nearest to any literal already
+        @Override
+        Double eval(String source, CompiledExpression expr, double... vars) {
+            return expr.eval(vars);
+        }
+
+        Double valueOf(long n) {
+            return (double) n;
+        }
+
+        Double valueOf(double constant) {
+            return constant;
+        }
+
+        Double valueOf(BigDecimal literal) {
+            return literal.doubleValue();
+        }
+
+        Double add(Double a, Double b) {
+            return a + b;
+        }
+
+        Double subtract(Double a, Double b) {
+            return a - b;
+        }
+
+        Double multiply(Double a, Double b) {
+            return a * b;
+        }
+
+        Double divide(Double a, Double b) {
+            return Operator.divide(a, b);
+        }
+
+        Double remainder(Double a, Double b) {
+            return Operator.remainder(a, b);
+        }
+
+        Double pow(Double a, Double b) {
+            return MathFunction.power(a, b);
+        }
+
+        Double negate(Double a) {
+            return -a;
+        }
+
+        double doubleValue(Double a) {
+            return a;
+        }
+    }
+
+    // --- BigDecimal rounded to a MathContext -----------
+
+    private static final class Decimals extends Numeric<BigDecimal> {
+        private final MathContext mc;
+        private final long limit;       // Integers below this have at most mc digits
+
+        Decimals(MathContext mc) {
+            this.mc = mc;
+            this.limit = mc.getPrecision() == 0 || mc.getPrecision() > 18
+                    ? Long.MAX_VALUE : BigInteger.TEN.pow(mc.getPrecision()).longValueExact();
+        }
+
+        @Override
+        boolean exact(long n) {
+            return n < limit && n > -limit;
+        }
+
+        BigDecimal valueOf(long n) {
+            return new BigDecimal(n, mc);
+        }
+
+        BigDecimal valueOf(double constant) {
+            checkFinite(constant);
+            return BigDecimal.valueOf(constant).round(mc);
+        }
+
+        BigDecimal valueOf(BigDecimal literal) {
+            return literal.round(mc);
+        }
+
+        BigDecimal add(BigDecimal a, BigDecimal b) {
+            return a.add(b, mc);
+        }
+
+        BigDecimal subtract(BigDecimal a, BigDecimal b) {
+            return a.subtract(b, mc);
+        }
+
+        BigDecimal multiply(BigDecimal a, BigDecimal b) {
+            return a.multiply(b, mc);
+        }
+
+        BigDecimal divide(BigDecimal a, BigDecimal b) {
+            if (b.signum() == 0) {
+                throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+            }
+            try {
+                return a.divide(b, mc);
+            } catch (ArithmeticException e) {
+                // Unlimited precision and no terminating expansion, as 1/3
+                throw new IllegalArgumentException(Calculator.NOT_EXACT);
+            }
+        }
+
+        BigDecimal remainder(BigDecimal a, BigDecimal b) {
+            if (b.signum() == 0) {
+                throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+            }
+            return a.remainder(b, mc);
+        }
+
+        BigDecimal pow(BigDecimal a, BigDecimal b) {
+            int n;
+            try {
+                n = b.intValueExact();
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException(Calculator.NOT_EXACT);
+            }
+            if (a.signum() == 0 && n < 0) {
+                throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+            }
+            if (Math.abs((long) n) > Rational.MAX_EXPONENT && a.abs().compareTo(BigDecimal.ONE) != 0
+                    && a.signum() != 0) {
+                throw new IllegalArgumentException(Calculator.NOT_EXACT);
+            }
+            return a.pow(n, mc);
+        }
+
+        BigDecimal negate(BigDecimal a) {
+            return a.negate(mc);
+        }
+
+        double doubleValue(BigDecimal a) {
+            return a.doubleValue();
+        }
+    }
+
+    // --- Exact fractions -----------
+
+    private static final class Rationals extends Numeric<Rational> {
+
+        Rational valueOf(long n) {
+            return Rational.valueOf(n);
+        }
+
+        Rational valueOf(double constant) {
+            checkFinite(constant);
+            return Rational.valueOf(BigDecimal.valueOf(constant));
+        }
+
+        Rational valueOf(BigDecimal literal) {
+            return Rational.valueOf(literal);
+        }
+
+        Rational add(Rational a, Rational b) {
+            return a.add(b);
+        }
+
+        Rational subtract(Rational a, Rational b) {
+            return a.subtract(b);
+        }
+
+        Rational multiply(Rational a, Rational b) {
+            return a.multiply(b);
+        }
+
+        Rational divide(Rational a, Rational b) {
+            return a.divide(b);
+        }
+
+        Rational remainder(Rational a, Rational b) {
+            return a.remainder(b);
+        }
+
+        Rational pow(Rational a, Rational b) {
+            return a.pow(b);
+        }
+
+        Rational negate(Rational a) {
+            return a.negate();
+        }
+
+        double doubleValue(Rational a) {
+            return a.doubleValue();
+        }
+    }
+
+    // Infinity and NaN (a registered operator, a huge literal) have no exact value
+    private static void checkFinite(double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            throw new IllegalArgumentException(Calculator.NOT_EXACT);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/*
+ *   The operator table of the Calculator
+ *
+ *   Each operator knows its symbol, precedence, associativity, arity and how to
+ *   apply it. The parsers look operators up by symbol in a char indexed table
+ *   (one for infix, one for prefix operators) and compare precedence as ints,
+ *   the evaluator dispatches on the instruction (opcode) of the operator.
+ *
+ *   Extra operators are added with register, they need no changes in the
+ *   parsers or evaluators. The built in ones get their own opcodes in
+ *   CompiledExpression, registered ones are run through their apply function.
+ */
+final class Operator {
+
+    // Postfix token used for prefix operators that share symbol with an infix one
+    static final String NEG_TOKEN = "neg";
+
+    private static volatile Operator[] infix = new Operator[128];
+    private static volatile Operator[] prefix = new Operator[128];
+    private static volatile Operator[] byId = new Operator[0];
+    private static final Map<String, Operator> byToken = new ConcurrentHashMap<>();
+    // Bumped on every change of the tables, see ExpressionCache
+    private static volatile int version;
+
+    static final Operator ADD = register(binary('+', 2, Calculator.Assoc.LEFT, (a, b) -> a + b),
+            CompiledExpression.ADD);
+    static final Operator SUB = register(binary('-', 2, Calculator.Assoc.LEFT, (a, b) -> a - b),
+            CompiledExpression.SUB);
+    static final Operator MUL = register(binary('*', 3, Calculator.Assoc.LEFT, (a, b) -> a * b),
+            CompiledExpression.MUL);
+    static final Operator DIV = register(binary('/', 3, Calculator.Assoc.LEFT, Operator::divide),
+            CompiledExpression.DIV);
+    static final Operator MOD = register(binary('%', 3, Calculator.Assoc.LEFT, Operator::remainder),
+            CompiledExpression.MOD);
+    static final Operator POW = register(binary('^', 4, Calculator.Assoc.RIGHT, MathFunction::power),
+            CompiledExpression.POW);
+    // Binds tighter than * but looser than ^, so -2^2 is -(2^2)
+    static final Operator NEG = register(prefix('-', NEG_TOKEN, 4, a -> -a),
+            CompiledExpression.NEG);
+
+    final char symbol;
+    final String token;
+    final int precedence;
+    final Calculator.Assoc assoc;
+    final int arity;
+    private final DoubleBinaryOperator binary;
+    private final DoubleUnaryOperator unary;
+    private int id;
+    private int instruction;
+
+    private Operator(char symbol, String token, int precedence, Calculator.Assoc assoc,
+                     DoubleBinaryOperator binary, DoubleUnaryOperator unary) {
+        this.symbol = symbol;
+        this.token = token;
+        this.precedence = precedence;
+        this.assoc = assoc;
+        this.arity = binary != null ? 2 : 1;
+        this.binary = binary;
+        this.unary = unary;
+    }
+
+    // An infix operator, apply gets (left, right)
+    static Operator binary(char symbol, int precedence, Calculator.Assoc assoc, DoubleBinaryOperator apply) {
+        return new Operator(symbol, String.valueOf(symbol), precedence, assoc, apply, null);
+    }
+
+    // A prefix operator, token is its name in postfix lists
+    static Operator prefix(char symbol, String token, int precedence, DoubleUnaryOperator apply) {
+        return new Operator(symbol, token, precedence, Calculator.Assoc.RIGHT, null, apply);
+    }
+
+    // Add an operator to the table, replaces any operator of the same kind and symbol
+    static Operator register(Operator op) {
+        int opcode = op.arity == 2 ? CompiledExpression.BINARY : CompiledExpression.UNARY;
+        return register(op, opcode);
+    }
+
+    private static synchronized Operator register(Operator op, int opcode) {
+        if (op.symbol >= 128 || Character.isLetterOrDigit(op.symbol) || Character.isWhitespace(op.symbol)
+                || op.symbol == '(' || op.symbol == ')' || op.symbol == '.') {
+            throw new IllegalArgumentException("Bad operator symbol " + op.symbol);
+        }
+        if (op.instruction != 0) {
+            throw new IllegalArgumentException("Operator already registered " + op.token);
+        }
+        Operator[] ids = Arrays.copyOf(byId, byId.length + 1);
+        op.id = byId.length;
+        op.instruction = opcode == CompiledExpression.BINARY || opcode == CompiledExpression.UNARY
+                ? opcode | (op.id << CompiledExpression.OP_BITS)
+                : opcode;
+        ids[op.id] = op;
+        Operator[] table = (op.arity == 2 ? infix : prefix).clone();
+        table[op.symbol] = op;
+        if (op.arity == 2) {
+            infix = table;
+        } else {
+            prefix = table;
+        }
+        byToken.put(op.token, op);
+        byId = ids;
+        version++;
+        return op;
+    }
+
+    // Remove a registered operator, its symbol is free again. Programs
+    // compiled while it was registered still run it.
+    static synchronized void unregister(Operator op) {
+        int opcode = op.instruction & CompiledExpression.OP_MASK;
+        if (opcode != CompiledExpression.BINARY && opcode != CompiledExpression.UNARY) {
+            throw new IllegalArgumentException("Not a registered operator " + op.token);
+        }
+        Operator[] table = (op.arity == 2 ? infix : prefix).clone();
+        if (table[op.symbol] == op) {
+            table[op.symbol] = null;
+            if (op.arity == 2) {
+                infix = table;
+            } else {
+                prefix = table;
+            }
+        }
+        byToken.remove(op.token, op);
+        version++;
+    }
+
+    // Changes with every register and unregister
+    static int version() {
+        return version;
+    }
+
+    // Infix operator for ch, null if there is none
+    static Operator infix(char ch) {
+        Operator[] table = infix;
+        return ch < table.length ? table[ch] : null;
+    }
+
+    // Prefix operator for ch, null if there is none
+    static Operator prefix(char ch) {
+        Operator[] table = prefix;
+        return ch < table.length ? table[ch] : null;
+    }
+
+    // Operator for a token in a postfix list, null if there is none
+    static Operator byToken(String token) {
+        return byToken.get(token);
+    }
+
+    static Operator byId(int id) {
+        return byId[id];
+    }
+
+    boolean isPrefix() {
+        return arity == 1;
+    }
+
+    // Index in the registry, see byId
+    int id() {
+        return id;
+    }
+
+    // The CompiledExpression instruction that applies this operator
+    int instruction() {
+        return instruction;
+    }
+
+    double apply(double operand) {
+        return unary.applyAsDouble(operand);
+    }
+
+    double apply(double left, double right) {
+        return binary.applyAsDouble(left, right);
+    }
+
+    // Thrown by divide and remainder: one shared instance without a stack
+    // trace, so a division by zero costs no allocation. Callers that hand
+    // errors on (CompiledExpression.eval) throw a fresh exception instead.
+    static final class Fault extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        private Fault(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    static final Fault ZERO_DIVISOR = new Fault(Calculator.DIV_BY_ZERO);
+
+    static double divide(double left, double right) {
+        if (right == 0) {
+            throw ZERO_DIVISOR;
+        }
+        return left / right;
+    }
+
+    static double remainder(double left, double right) {
+        if (right == 0) {
+            throw ZERO_DIVISOR;
+        }
+        return left % right;
+    }
+
+    @Override
+    public String toString() {
+        return token;
+    }
+}
@@ -0,0 +1,439 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ *   Simplifies compiled programs between parsing and evaluation
+ *
+ *   The postfix program is turned into a DAG of Nodes, bottom up, and while
+ *   doing that
+ *   - operators on constants are folded to a constant
+ *   - identities are dropped: x*1, 1*x, x/1, x-0, x+(-0), x^1, -(-x)
+ *   - equal subexpressions are shared (hash-consing), a shared one is
+ *     computed once and kept in a temporary (STORE/LOAD)
+ *
+ *   Results are bit for bit the same as the unoptimized program. Only
+ *   rewrites that hold for every double (also -0, NaN and infinities) are
+ *   done, so 0+x and x*0 are kept. Errors are kept too: a division by a
+ *   constant 0 is never folded and raises DIV_BY_ZERO when evaluated, and
+ *   the evaluation order, hence which error comes first, is unchanged.
+ *   Registered operators are neither folded nor shared, they need not be pure.
+ *   Nor are registered functions, built in ones are (see MathFunction).
+ *
+ *   Nodes are iterative all the way, deep programs do not overflow the stack.
+ *   An Optimizer is not thread-safe. Its node table may span many programs,
+ *   see BatchCompiler.
+ */
+final class Optimizer {
+
+    // --- A node of the DAG -----------
+
+    static final class Node {
+        final int op;           // CompiledExpression opcode
+        final int arg;          // Operator id for UNARY and BINARY, function and count for CALL
+        final double value;     // For CONST
+        final String name;      // For VAR
+        final Node left;        // Only operand of unary operators
+        final Node right;
+        final Node[] args;      // All arguments of a CALL, left and right are the first two
+        int uses;               // Parents (and roots) using this node
+        int temp = -1;          // Temporary holding the value once emitted
+        int position = -1;      // Source offset, of the first if shared, not part of equals
+
+        Node(int op, int arg, double value, String name, Node left, Node right) {
+            this.op = op;
+            this.arg = arg;
+            this.value = value;
+            this.name = name;
+            this.left = left;
+            this.right = right;
+            this.args = null;
+        }
+
+        Node(int op, int arg, Node[] args) {
+            this.op = op;
+            this.arg = arg;
+            this.value = 0;
+            this.name = null;
+            this.left = args.length > 0 ? args[0] : null;
+            this.right = args.length > 1 ? args[1] : null;
+            this.args = args;
+        }
+
+        int children() {
+            return args != null ? args.length : right != null ? 2 : left != null ? 1 : 0;
+        }
+
+        Node child(int i) {
+            return args != null ? args[i] : i == 0 ? left : right;
+        }
+
+        boolean isConstant() {
+            return op == CompiledExpression.CONST;
+        }
+
+        boolean isLeaf() {
+            return children() == 0;
+        }
+
+        boolean is(double constant) {
+            return isConstant() && Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(constant);
+        }
+
+        // Registered operators and functions may have side effects or depend on state
+        boolean isPure() {
+            return op != CompiledExpression.UNARY && op != CompiledExpression.BINARY
+                    && (op != CompiledExpression.CALL || CompiledExpression.function(arg).isPure());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            Node n = (Node) o;
+            return op == n.op && arg == n.arg && left == n.left && right == n.right && sameArgs(n)
+                    && Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(n.value)
+                    && (name == null ? n.name == null : name.equals(n.name));
+        }
+
+        private boolean sameArgs(Node n) {
+            for (int i = 2; i < children(); i++) {
+                if (args[i] != n.args[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = op * 31 + arg;
+            h = h * 31 + Double.hashCode(value);
+            h = h * 31 + (name == null ? 0 : name.hashCode());
+            for (int i = 0; i < children(); i++) {
+                h = h * 31 + System.identityHashCode(child(i));
+            }
+            return h;
+        }
+    }
+
+    private final Map<Node, Node> nodes = new HashMap<>();
+    private int folded;
+    private int identities;
+    private int shared;
+    private int removed;
+
+    // Optimize with a fresh Optimizer
+    static CompiledExpression optimize(CompiledExpression expr) {
+        return new Optimizer().run(expr);
+    }
+
+    CompiledExpression run(CompiledExpression expr) {
+        if (!expr.isValid()) {
+            return expr;
+        }
+        Node root = tree(expr);
+        root.uses++;
+        CompiledExpression.Builder builder = new CompiledExpression.Builder();
+        for (String name : expr.variables()) {
+            builder.declare(name);
+        }
+        int[] temps = {0};
+        emit(root, builder, temps);
+        CompiledExpression optimized = builder.build();
+        removed += expr.code().length - countNodes(optimized.code());
+        return optimized;
+    }
+
+    // Instructions that are nodes, a STORE just copies
+    private static int countNodes(int[] code) {
+        int n = 0;
+        for (int instr : code) {
+            if ((instr & CompiledExpression.OP_MASK) != CompiledExpression.STORE) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // --- Program to DAG -----------
+
+    // The DAG of expr, built bottom up in program order
+    Node tree(CompiledExpression expr) {
+        int[] code = expr.code();
+        int[] positions = expr.positions();
+        double[] constants = expr.constants();
+        List<String> variables = expr.variables();
+        Node[] stack = new Node[expr.stackSize()];
+        Node[] temps = new Node[expr.stackSize()];
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            int instr = code[pc];
+            int op = instr & CompiledExpression.OP_MASK;
+            int arg = instr >>> CompiledExpression.OP_BITS;
+            switch (op) {
+                case CompiledExpression.CONST:
+                    stack[sp++] = constant(constants[arg]);
+                    break;
+                case CompiledExpression.VAR:
+                    stack[sp++] = intern(new Node(op, 0, 0, variables.get(arg), null, null));
+                    break;
+                case CompiledExpression.STORE:
+                    temps[arg] = stack[sp - 1];
+                    break;
+                case CompiledExpression.LOAD:
+                    stack[sp++] = temps[arg];
+                    break;
+                case CompiledExpression.NEG:
+                case CompiledExpression.UNARY:
+                    stack[sp - 1] = unary(op, arg, stack[sp - 1]);
+                    break;
+                case CompiledExpression.CALL:
+                    int argc = arg & CompiledExpression.ARGC_MASK;
+                    sp -= argc;
+                    stack[sp] = call(arg, Arrays.copyOfRange(stack, sp, sp + argc));
+                    sp++;
+                    break;
+                default:
+                    sp--;
+                    stack[sp - 1] = binary(op, arg, stack[sp - 1], stack[sp]);
+                    break;
+            }
+            if (stack[sp - 1].position < 0) {
+                stack[sp - 1].position = positions[pc];
+            }
+        }
+        return stack[0];
+    }
+
+    private Node constant(double value) {
+        return intern(new Node(CompiledExpression.CONST, 0, value, null, null, null));
+    }
+
+    private Node unary(int op, int arg, Node operand) {
+        if (op == CompiledExpression.NEG) {
+            if (operand.isConstant()) {
+                folded++;
+                return constant(-operand.value);
+            }
+            if (operand.op == CompiledExpression.NEG) {
+                identities++;
+                return operand.left;
+            }
+        }
+        return node(new Node(op, arg, 0, null, operand, null));
+    }
+
+    private Node binary(int op, int arg, Node left, Node right) {
+        if (left.isConstant() && right.isConstant() && canFold(op, right.value)) {
+            folded++;
+            return constant(fold(op, left.value, right.value));
+        }
+        Node same = identity(op, left, right);
+        if (same != null) {
+            identities++;
+            return same;
+        }
+        return node(new Node(op, arg, 0, null, left, right));
+    }
+
+    private Node call(int arg, Node[] args) {
+        MathFunction fn = CompiledExpression.function(arg);
+        boolean constant = fn.isPure();
+        for (Node a : args) {
+            constant &= a.isConstant();
+        }
+        if (constant) {
+            double[] values = new double[args.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = args[i].value;
+            }
+            folded++;
+            return constant(fn.apply(values, 0, values.length));
+        }
+        return node(new Node(CompiledExpression.CALL, arg, args));
+    }
+
+    // The operand op(left, right) always equals, or null
+    private static Node identity(int op, Node left, Node right) {
+        switch (op) {
+            case CompiledExpression.ADD:
+                return right.is(-0.0) ? left : left.is(-0.0) ? right : null;
+            case CompiledExpression.SUB:
+                return right.is(0.0) ? left : null;
+            case CompiledExpression.MUL:
+                return right.is(1.0) ? left : left.is(1.0) ? right : null;
+            case CompiledExpression.DIV:
+            case CompiledExpression.POW:
+                return right.is(1.0) ? left : null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean canFold(int op, double right) {
+        switch (op) {
+            case CompiledExpression.DIV:
+            case CompiledExpression.MOD:
+                return right != 0;      // Must raise DIV_BY_ZERO when evaluated
+            case CompiledExpression.ADD:
+            case CompiledExpression.SUB:
+            case CompiledExpression.MUL:
+            case CompiledExpression.POW:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Same operations as CompiledExpression.run
+    private static double fold(int op, double left, double right) {
+        switch (op) {
+            case CompiledExpression.ADD:
+                return left + right;
+            case CompiledExpression.SUB:
+                return left - right;
+            case CompiledExpression.MUL:
+                return left * right;
+            case CompiledExpression.DIV:
+                return left / right;
+            case CompiledExpression.MOD:
+                return left % right;
+            case CompiledExpression.POW:
+                return MathFunction.power(left, right);
+            default:
+                throw new RuntimeException(Calculator.OP_NOT_FOUND);
+        }
+    }
+
+    // A new operator node, shared if an equal one exists
+    private Node node(Node n) {
+        Node existing = n.isPure() ? nodes.get(n) : null;
+        if (existing != null) {
+            shared++;
+            return existing;
+        }
+        for (int i = 0; i < n.children(); i++) {
+            n.child(i).uses++;
+        }
+        if (n.isPure()) {
+            nodes.put(n, n);
+        }
+        return n;
+    }
+
+    private Node intern(Node leaf) {
+        Node existing = nodes.putIfAbsent(leaf, leaf);
+        return existing != null ? existing : leaf;
+    }
+
+    // --- DAG to program -----------
+
+    // Post order, without recursion. A non leaf node used more than once is
+    // stored in a temporary the first time and loaded after that.
+    void emit(Node root, CompiledExpression.Builder builder, int[] temps) {
+        Node[] stack = new Node[16];
+        int[] next = new int[16];       // Next child to visit
+        int sp = 0;
+        stack[sp++] = root;
+        while (sp > 0) {
+            Node n = stack[sp - 1];
+            if (next[sp - 1] == 0 && n.temp >= 0) {
+                builder.at(n.position).load(n.temp);
+                sp--;
+                continue;
+            }
+            Node child = next[sp - 1] < n.children() ? n.child(next[sp - 1]) : null;
+            next[sp - 1]++;
+            if (child != null) {
+                if (sp == stack.length) {
+                    stack = Arrays.copyOf(stack, sp * 2);
+                    next = Arrays.copyOf(next, sp * 2);
+                }
+                stack[sp] = child;
+                next[sp] = 0;
+                sp++;
+            } else {
+                emitNode(n, builder);
+                if (n.uses > 1 && !n.isLeaf()) {
+                    n.temp = temps[0]++;
+                    builder.store(n.temp);
+                }
+                sp--;
+            }
+        }
+    }
+
+    // Append the nodes under root not numbered yet to order, children first,
+    // and number them (in temp) by their index. Iterative as emit.
+    void order(Node root, List<Node> order) {
+        Node[] stack = new Node[16];
+        int[] next = new int[16];
+        int sp = 0;
+        stack[sp++] = root;
+        while (sp > 0) {
+            Node n = stack[sp - 1];
+            if (next[sp - 1] == 0 && n.temp >= 0) {
+                sp--;
+                continue;
+            }
+            Node child = next[sp - 1] < n.children() ? n.child(next[sp - 1]) : null;
+            next[sp - 1]++;
+            if (child != null) {
+                if (sp == stack.length) {
+                    stack = Arrays.copyOf(stack, sp * 2);
+                    next = Arrays.copyOf(next, sp * 2);
+                }
+                stack[sp] = child;
+                next[sp] = 0;
+                sp++;
+            } else {
+                n.temp = order.size();
+                order.add(n);
+                sp--;
+            }
+        }
+    }
+
+    private static void emitNode(Node n, CompiledExpression.Builder builder) {
+        builder.at(n.position);
+        switch (n.op) {
+            case CompiledExpression.CONST:
+                builder.constant(n.value);
+                break;
+            case CompiledExpression.VAR:
+                builder.variable(n.name);
+                break;
+            default:
+                builder.instruction(n.op | (n.arg << CompiledExpression.OP_BITS));
+                break;
+        }
+    }
+
+    // --- Statistics, summed over all runs -----------
+
+    int folded() {
+        return folded;
+    }
+
+    int identities() {
+        return identities;
+    }
+
+    int shared() {
+        return shared;
+    }
+
+    // Instructions removed, a shared subexpression counts as one LOAD
+    int removed() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "Optimizer[removed=" + removed + ", folded=" + folded + ", identities=" + identities
+                + ", shared=" + shared + "]";
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+
+/*
+ *   Shunting-yard straight from Lexer tokens to a CompiledExpression
+ *
+ *   Same algorithm as Calculator.infix2Postfix but on typed tokens: operators
+ *   are compared by their int precedence and no String is created. The operator
+ *   stack is reused between calls, so a Parser is not thread-safe.
+ *
+ *   A function call is a left parenthesis on the operator stack that also
+ *   holds the function and counts its arguments, one more at each comma.
+ *   The closing parenthesis checks the count and emits the CALL.
+ *
+ *   Each instruction records the offset of the token it came from, and the
+ *   first error in the input gives an invalid CompiledExpression holding the
+ *   error and its offset, without an exception. parse throws instead.
+ */
+final class Parser {
+
+    private final Lexer lexer = new Lexer();
+    // Pending operators, null marks a left parenthesis, with their offsets.
+    // For the parenthesis of a call, the function and its arguments so far.
+    private Operator[] stack = new Operator[16];
+    private int[] positions = new int[16];
+    private MathFunction[] calls = new MathFunction[16];
+    private int[] args = new int[16];
+    private int sp;
+
+    // Throws IllegalArgumentException on bad input
+    CompiledExpression parse(CharSequence expr) {
+        CompiledExpression compiled = tryParse(expr);
+        if (!compiled.isValid()) {
+            throw new IllegalArgumentException(compiled.error());
+        }
+        return compiled;
+    }
+
+    CompiledExpression tryParse(CharSequence expr) {
+        CompiledExpression.Builder builder = new CompiledExpression.Builder();
+        lexer.reset(expr);
+        sp = 0;
+        boolean operand = true;     // Expecting an operand (not an infix operator)
+        for (Lexer.Kind kind = lexer.next(); kind != Lexer.Kind.END; kind = lexer.next()) {
+            int at = lexer.start();
+            switch (kind) {
+                case NUMBER:
+                    if (!operand) {
+                        return CompiledExpression.invalid(Calculator.MISSING_OPERATOR, at);
+                    }
+                    builder.at(at).constant(lexer.number());
+                    operand = false;
+                    break;
+                case NAME:
+                    if (!operand) {
+                        return CompiledExpression.invalid(Calculator.MISSING_OPERATOR, at);
+                    }
+                    builder.at(at).variable(lexer.name());
+                    operand = false;
+                    break;
+                case LEFT_PAREN:
+                    if (!operand) {
+                        return CompiledExpression.invalid(Calculator.MISSING_OPERATOR, at);
+                    }
+                    push(null, at);
+                    break;
+                case FUNCTION:
+                    if (!operand) {
+                        return CompiledExpression.invalid(Calculator.MISSING_OPERATOR, at);
+                    }
+                    push(null, at);
+                    calls[sp - 1] = lexer.function();
+                    args[sp - 1] = 1;
+                    break;
+                case COMMA:
+                    popToParenthesis(builder);
+                    if (sp == 0 || calls[sp - 1] == null) {
+                        return CompiledExpression.invalid(Calculator.MISSING_OPERATOR, at);
+                    }
+                    if (++args[sp - 1] > MathFunction.MAX_ARGS) {
+                        return CompiledExpression.invalid(Calculator.WRONG_ARGUMENTS, positions[sp - 1]);
+                    }
+                    operand = true;
+                    break;
+                case RIGHT_PAREN:
+                    // f() has no arguments, anywhere else ) needs an operand before it
+                    boolean empty = operand && stack[sp - 1] == null && calls[sp - 1] != null && args[sp - 1] == 1;
+                    if (operand && !empty) {
+                        return CompiledExpression.invalid(Calculator.MISSING_OPERAND, at);
+                    }
+                    popToParenthesis(builder);
+                    sp--;
+                    MathFunction fn = calls[sp];
+                    if (fn != null) {
+                        int count = empty ? 0 : args[sp];
+                        if (!fn.accepts(count)) {
+                            return CompiledExpression.invalid(Calculator.WRONG_ARGUMENTS, positions[sp]);
+                        }
+                        builder.at(positions[sp]).call(fn, count);
+                    }
+                    operand = false;
+                    break;
+                case OPERATOR:
+                    Operator op = lexer.operator();
+                    if (!op.isPrefix()) {
+                        popHigher(builder, op);
+                    }
+                    push(op, at);
+                    operand = true;
+                    break;
+                default:
+                    return CompiledExpression.invalid(lexer.error(), at);
+            }
+        }
+        if (operand) {
+            return CompiledExpression.invalid(Calculator.MISSING_OPERAND, lexer.start());
+        }
+        while (sp > 0) {
+            pop(builder);
+        }
+        return builder.build();
+    }
+
+    // Pop operators that bind tighter than op (or as tight, op left associative)
+    private void popHigher(CompiledExpression.Builder builder, Operator op) {
+        while (sp > 0 && stack[sp - 1] != null && binds(stack[sp - 1], op)) {
+            pop(builder);
+        }
+    }
+
+    static boolean binds(Operator top, Operator op) {
+        return top.precedence > op.precedence
+                || (top.precedence == op.precedence && op.assoc == Calculator.Assoc.LEFT);
+    }
+
+    // Pop operators down to the innermost open parenthesis, which is kept
+    private void popToParenthesis(CompiledExpression.Builder builder) {
+        while (sp > 0 && stack[sp - 1] != null) {
+            pop(builder);
+        }
+    }
+
+    private void pop(CompiledExpression.Builder builder) {
+        sp--;
+        builder.at(positions[sp]).operator(stack[sp]);
+    }
+
+    private void push(Operator op, int position) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+            positions = Arrays.copyOf(positions, sp * 2);
+            calls = Arrays.copyOf(calls, sp * 2);
+            args = Arrays.copyOf(args, sp * 2);
+        }
+        positions[sp] = position;
+        calls[sp] = null;
+        stack[sp++] = op;
+    }
+}
@@ -1,4 +1,17 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
 
 import static java.lang.System.in;
 import static java.lang.System.out;
@@ -8,15 +21,28 @@ import static java.lang.System.out;
  *
  *  REPL = Read Eval Print Loop
  *
- *   **** NOTHING TO DO HERE ****
+ *  With any of the options below it runs in batch mode instead: one
+ *  expression per input line, one result per output line, no prompts.
+ *
+ *   --in file      read from file (default stdin)
+ *   --out file     write to file (default stdout)
+ *   --flush n      flush output every n lines (default 0, only at the end)
+ *   --threads n    evaluate on n threads while reading and writing on the
+ *                  main thread (default 0, all in the main thread)
  *
  */
 class REPL {
 
-    public static void main(String[] args) {
-        new REPL().program();
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            new REPL().program();
+        } else {
+            new REPL().batch(args);
+        }
     }
 
+    static final int IO_BUFFER = 1 << 16;
+
     final Scanner scan = new Scanner(in);
     final Calculator calculator = new Calculator();
 
@@ -38,5 +64,93 @@ class REPL {
         }
     }
 
+    // ---------- Batch mode -----------------------
+
+    void batch(String[] args) throws IOException {
+        String inFile = null;
+        String outFile = null;
+        int flushEvery = 0;
+        int threads = 0;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for option " + args[i]);
+            }
+            switch (args[i]) {
+                case "--in":
+                    inFile = args[i + 1];
+                    break;
+                case "--out":
+                    outFile = args[i + 1];
+                    break;
+                case "--flush":
+                    flushEvery = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Reader reader = inFile != null
+                ? Files.newBufferedReader(Paths.get(inFile), StandardCharsets.UTF_8)
+                : new InputStreamReader(in, StandardCharsets.UTF_8);
+        Writer writer = outFile != null
+                ? Files.newBufferedWriter(Paths.get(outFile), StandardCharsets.UTF_8)
+                : new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        try (BufferedReader r = new BufferedReader(reader, IO_BUFFER);
+             BufferedWriter w = new BufferedWriter(writer, IO_BUFFER)) {
+            batch(r, w, flushEvery, threads);
+        }
+    }
+
+    // Evaluate every line of r, write results to w in the same order
+    void batch(BufferedReader r, BufferedWriter w, int flushEvery, int threads) throws IOException {
+        ResultWriter results = new ResultWriter(w, flushEvery);
+        try {
+            if (threads > 0) {
+                ExecutorService pool = Workers.fixed(threads);
+                try {
+                    calculator.evalAll(r.lines().iterator(), results::write, pool);
+                } finally {
+                    pool.shutdown();
+                }
+            } else {
+                for (Iterator<String> lines = r.lines().iterator(); lines.hasNext(); ) {
+                    results.write(calculator.evaluate(lines.next()));
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        w.flush();
+    }
+
+    // Writes results line by line, flushing every flushEvery lines (0 = never)
+    static class ResultWriter {
+        final BufferedWriter w;
+        final int flushEvery;
+        int lines;
+
+        ResultWriter(BufferedWriter w, int flushEvery) {
+            this.w = w;
+            this.flushEvery = flushEvery;
+        }
 
+        void write(Result result) {
+            try {
+                if (result.isOk()) {
+                    w.write(Double.toString(result.value));
+                } else {
+                    w.write(result.error);
+                }
+                w.newLine();
+                if (flushEvery > 0 && ++lines % flushEvery == 0) {
+                    w.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
 }
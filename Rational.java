@@ -0,0 +1,142 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/*
+ *   An exact fraction num/den, den > 0 and gcd(num, den) = 1
+ *
+ *   Immutable. Used by Numeric.RATIONAL, which keeps values in long as long as
+ *   they are integers that fit and only then creates Rationals.
+ */
+final class Rational implements Comparable<Rational> {
+
+    static final Rational ZERO = new Rational(BigInteger.ZERO, BigInteger.ONE);
+    static final Rational ONE = new Rational(BigInteger.ONE, BigInteger.ONE);
+
+    // Largest exponent for ^ with a base other than -1, 0 and 1
+    static final int MAX_EXPONENT = 1 << 16;
+
+    final BigInteger num;
+    final BigInteger den;
+
+    private Rational(BigInteger num, BigInteger den) {
+        this.num = num;
+        this.den = den;
+    }
+
+    static Rational of(BigInteger num, BigInteger den) {
+        if (den.signum() == 0) {
+            throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+        }
+        if (den.signum() < 0) {
+            num = num.negate();
+            den = den.negate();
+        }
+        BigInteger gcd = num.gcd(den);
+        if (!gcd.equals(BigInteger.ONE)) {
+            num = num.divide(gcd);
+            den = den.divide(gcd);
+        }
+        return new Rational(num, den);
+    }
+
+    static Rational valueOf(long n) {
+        return new Rational(BigInteger.valueOf(n), BigInteger.ONE);
+    }
+
+    // The decimal as written, 0.1 is 1/10
+    static Rational valueOf(BigDecimal d) {
+        return d.scale() <= 0
+                ? new Rational(d.toBigIntegerExact(), BigInteger.ONE)
+                : of(d.unscaledValue(), BigInteger.TEN.pow(d.scale()));
+    }
+
+    boolean isInteger() {
+        return den.equals(BigInteger.ONE);
+    }
+
+    Rational add(Rational r) {
+        if (isInteger() && r.isInteger()) {
+            return new Rational(num.add(r.num), BigInteger.ONE);
+        }
+        return of(num.multiply(r.den).add(r.num.multiply(den)), den.multiply(r.den));
+    }
+
+    Rational subtract(Rational r) {
+        return add(r.negate());
+    }
+
+    Rational multiply(Rational r) {
+        return of(num.multiply(r.num), den.multiply(r.den));
+    }
+
+    Rational divide(Rational r) {
+        return of(num.multiply(r.den), den.multiply(r.num));
+    }
+
+    // Sign of the dividend, like % on double: this - trunc(this / r) * r
+    Rational remainder(Rational r) {
+        if (r.num.signum() == 0) {
+            throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+        }
+        BigInteger[] q = num.multiply(r.den).divideAndRemainder(den.multiply(r.num));
+        return subtract(r.multiply(new Rational(q[0], BigInteger.ONE)));
+    }
+
+    // Integer exponents only, anything else has no exact result in general
+    Rational pow(Rational exponent) {
+        if (!exponent.isInteger()) {
+            throw new IllegalArgumentException(Calculator.NOT_EXACT);
+        }
+        if (isInteger() && num.abs().compareTo(BigInteger.ONE) <= 0) {
+            // 0, 1 and -1 to any power
+            if (num.signum() == 0) {
+                int sign = exponent.num.signum();
+                if (sign < 0) {
+                    throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+                }
+                return sign == 0 ? ONE : ZERO;
+            }
+            return num.signum() > 0 || !exponent.num.testBit(0) ? ONE : this;
+        }
+        if (exponent.num.abs().compareTo(BigInteger.valueOf(MAX_EXPONENT)) > 0) {
+            throw new IllegalArgumentException(Calculator.NOT_EXACT);
+        }
+        int n = exponent.num.intValue();
+        Rational r = new Rational(num.pow(Math.abs(n)), den.pow(Math.abs(n)));
+        return n >= 0 ? r : of(r.den, r.num);
+    }
+
+    Rational negate() {
+        return new Rational(num.negate(), den);
+    }
+
+    double doubleValue() {
+        return isInteger() ? num.doubleValue() : toBigDecimal(MathContext.DECIMAL128).doubleValue();
+    }
+
+    BigDecimal toBigDecimal(MathContext mc) {
+        return new BigDecimal(num).divide(new BigDecimal(den), mc);
+    }
+
+    @Override
+    public int compareTo(Rational r) {
+        return num.multiply(r.den).compareTo(r.num.multiply(den));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Rational && num.equals(((Rational) o).num) && den.equals(((Rational) o).den);
+    }
+
+    @Override
+    public int hashCode() {
+        return num.hashCode() * 31 + den.hashCode();
+    }
+
+    // n or n/d
+    @Override
+    public String toString() {
+        return isInteger() ? num.toString() : num + "/" + den;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *   The outcome of evaluating one expression: a value or an error
+ *
+ *   An error has a message (one of the Calculator error constants), its Code
+ *   and, when known, the character offset in the expression where it was
+ *   found (-1 otherwise). Errors are reported this way all through the
+ *   evaluate paths, no exception is created for them.
+ */
+final class Result {
+
+    enum Code {
+        MISSING_OPERAND(Calculator.MISSING_OPERAND),
+        DIV_BY_ZERO(Calculator.DIV_BY_ZERO),
+        MISSING_OPERATOR(Calculator.MISSING_OPERATOR),
+        OP_NOT_FOUND(Calculator.OP_NOT_FOUND),
+        NOT_EXACT(Calculator.NOT_EXACT),
+        WRONG_ARGUMENTS(Calculator.WRONG_ARGUMENTS),
+        OTHER(null);            // Thrown by a registered operator
+
+        // values() copies the array on each call
+        static final Code[] VALUES = values();
+
+        final String message;
+
+        Code(String message) {
+            this.message = message;
+        }
+
+        static Code of(String message) {
+            for (Code c : VALUES) {
+                if (c.message != null && c.message.equals(message)) {
+                    return c;
+                }
+            }
+            return OTHER;
+        }
+    }
+
+    final double value;
+    final String error;
+    final Code code;            // Null if ok
+    final int position;
+
+    private Result(double value, String error, Code code, int position) {
+        this.value = value;
+        this.error = error;
+        this.code = code;
+        this.position = position;
+    }
+
+    static Result ok(double value) {
+        return new Result(value, null, null, -1);
+    }
+
+    static Result error(String error) {
+        return error(error, -1);
+    }
+
+    static Result error(String error, int position) {
+        return new Result(Double.NaN, error, Code.of(error), position);
+    }
+
+    // The same error found at position instead
+    Result at(int position) {
+        return position == this.position ? this : new Result(value, error, code, position);
+    }
+
+    boolean isOk() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return isOk() ? String.valueOf(value) : position < 0 ? error : error + " at " + position;
+    }
+}
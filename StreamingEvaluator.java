@@ -0,0 +1,355 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/*
+ *   Evaluates an expression read as a stream, without holding it in memory
+ *
+ *   Characters come from a Reader or, as ASCII bytes, from a channel through
+ *   a fixed buffer. Tokens are lexed on the fly and reduced by the same
+ *   shunting-yard as Parser as soon as precedence allows, on a double[] value
+ *   stack and a byte[] operator stack (operator id + 1, 0 for a left
+ *   parenthesis, which for a function call also records the function and
+ *   its arguments so far). Nothing is recursive and the stacks hold only what is still
+ *   pending, so memory grows with the nesting depth (and chains of ^ or prefix
+ *   operators), not with the length of the input. A million nested
+ *   parentheses take a few megabytes.
+ *
+ *   Values and errors are the same as Calculator.eval: a syntax error anywhere
+ *   wins over an error while evaluating, which is kept until the end of input.
+ *   A StreamingEvaluator reuses its buffers and is not thread-safe.
+ */
+final class StreamingEvaluator {
+
+    private static final int BUFFER = 1 << 13;
+    private static final byte PAREN = 0;
+    // Longer names are kept cut, they are no function
+    private static final int MAX_NAME = 256;
+
+    // Input
+    private Reader reader;
+    private ReadableByteChannel channel;
+    private final char[] chars = new char[BUFFER];
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER);
+    private int pos;
+    private int limit;
+    private boolean seen;           // Any character read
+    private final StringBuilder number = new StringBuilder();
+    private final StringBuilder name = new StringBuilder();
+    private final Lexer numberLexer = new Lexer();
+
+    // Parse state
+    private double[] values = new double[16];
+    private int vp;
+    private byte[] ops = new byte[16];
+    private int[] calls = new int[16];      // Function id + 1 of a PAREN, 0 if none
+    private int[] counts = new int[16];     // Arguments of the call so far
+    private int op;
+    private int depth;
+    private boolean operand;
+    private boolean unbound;
+    private String error;           // First error while reducing
+
+    double eval(CharSequence expr) {
+        try {
+            return eval(new StringReader(expr.toString()));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    double eval(Reader in) throws IOException {
+        reader = in;
+        channel = null;
+        return run();
+    }
+
+    // Bytes are taken as ASCII, anything else is not part of an expression
+    double eval(ReadableByteChannel in) throws IOException {
+        reader = null;
+        channel = in;
+        return run();
+    }
+
+    // Slots allocated for both stacks, they grow to the deepest input seen
+    int capacity() {
+        return values.length + ops.length;
+    }
+
+    private double run() throws IOException {
+        pos = 0;
+        limit = 0;
+        seen = false;
+        vp = 0;
+        op = 0;
+        depth = 0;
+        operand = true;
+        unbound = false;
+        error = null;
+        for (int ch = peek(); ch >= 0; ch = peek()) {
+            if (Character.isWhitespace(ch)) {
+                pos++;
+            } else if (isDigit(ch) || ch == '.') {
+                pushValue(readNumber());
+            } else if (isNameStart(ch)) {
+                readName();
+                if (skipWhitespace() == '(') {
+                    pos++;
+                    call(name.length() <= MAX_NAME ? MathFunction.byName(name.toString()) : null);
+                } else {
+                    unbound = true;
+                    pushValue(Double.NaN);
+                }
+            } else {
+                pos++;
+                symbol((char) ch);
+            }
+        }
+        if (!seen) {
+            return Double.NaN;
+        }
+        if (depth != 0) {
+            throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+        }
+        if (operand) {
+            throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+        }
+        if (unbound) {
+            throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+        }
+        while (op > 0) {
+            reduce();
+        }
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        return values[0];
+    }
+
+    // A function and its (, checked as Lexer and Parser do
+    private void call(MathFunction fn) {
+        if (fn == null) {
+            throw new IllegalArgumentException(Calculator.OP_NOT_FOUND);
+        }
+        depth++;
+        if (!operand) {
+            throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+        }
+        pushOp(PAREN);
+        calls[op - 1] = fn.id() + 1;
+        counts[op - 1] = 1;
+    }
+
+    // Parentheses, commas and operators, checked as Lexer and Parser do
+    private void symbol(char ch) {
+        if (ch == ',') {
+            if (operand) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+            }
+            while (op > 0 && ops[op - 1] != PAREN) {
+                reduce();
+            }
+            if (op == 0 || calls[op - 1] == 0) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+            }
+            if (++counts[op - 1] > MathFunction.MAX_ARGS) {
+                throw new IllegalArgumentException(Calculator.WRONG_ARGUMENTS);
+            }
+            operand = true;
+        } else if (ch == '(') {
+            depth++;
+            if (!operand) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+            }
+            pushOp(PAREN);
+        } else if (ch == ')') {
+            if (--depth < 0) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+            }
+            // f() has no arguments, anywhere else ) needs an operand before it
+            boolean empty = operand && ops[op - 1] == PAREN && calls[op - 1] != 0 && counts[op - 1] == 1;
+            if (operand && !empty) {
+                throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+            }
+            while (ops[op - 1] != PAREN) {
+                reduce();
+            }
+            op--;
+            if (calls[op] != 0) {
+                MathFunction fn = MathFunction.byId(calls[op] - 1);
+                int count = empty ? 0 : counts[op];
+                if (!fn.accepts(count)) {
+                    throw new IllegalArgumentException(Calculator.WRONG_ARGUMENTS);
+                }
+                reduceCall(fn, count);
+            }
+            operand = false;
+        } else {
+            Operator o = operand ? Operator.prefix(ch) : Operator.infix(ch);
+            if (o == null) {
+                boolean known = Operator.prefix(ch) != null || Operator.infix(ch) != null;
+                throw new IllegalArgumentException(known && !operand
+                        ? Calculator.MISSING_OPERATOR : Calculator.MISSING_OPERAND);
+            }
+            if (!o.isPrefix()) {
+                while (op > 0 && ops[op - 1] != PAREN && Parser.binds(operator(ops[op - 1]), o)) {
+                    reduce();
+                }
+            }
+            if (o.id() >= 255) {
+                throw new IllegalArgumentException(Calculator.OP_NOT_FOUND);
+            }
+            pushOp((byte) (o.id() + 1));
+            operand = true;
+        }
+    }
+
+    private void pushValue(double value) {
+        if (!operand) {
+            throw new IllegalArgumentException(Calculator.MISSING_OPERATOR);
+        }
+        if (vp == values.length) {
+            values = Arrays.copyOf(values, vp * 2);
+        }
+        values[vp++] = value;
+        operand = false;
+    }
+
+    private void pushOp(byte b) {
+        if (op == ops.length) {
+            ops = Arrays.copyOf(ops, op * 2);
+            calls = Arrays.copyOf(calls, op * 2);
+            counts = Arrays.copyOf(counts, op * 2);
+        }
+        calls[op] = 0;
+        ops[op++] = b;
+    }
+
+    private static Operator operator(byte b) {
+        return Operator.byId((b & 0xFF) - 1);
+    }
+
+    // Apply the operator on top of the stack, after the first error only
+    // the stacks are kept right
+    private void reduce() {
+        Operator o = operator(ops[--op]);
+        if (o.isPrefix()) {
+            if (error == null) {
+                values[vp - 1] = apply(o, values[vp - 1], 0);
+            }
+        } else {
+            vp--;
+            if (error == null) {
+                values[vp - 1] = apply(o, values[vp - 1], values[vp]);
+            }
+        }
+    }
+
+    // Replace the count values on top by fn of them
+    private void reduceCall(MathFunction fn, int count) {
+        if (vp == values.length) {
+            values = Arrays.copyOf(values, vp * 2);
+        }
+        double value = Double.NaN;
+        if (error == null) {
+            try {
+                value = fn.apply(values, vp - count, count);
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+            }
+        }
+        vp -= count;
+        values[vp++] = value;
+    }
+
+    private double apply(Operator o, double a, double b) {
+        try {
+            return o.isPrefix() ? o.apply(a) : o.apply(a, b);
+        } catch (IllegalArgumentException e) {
+            error = e.getMessage();
+            return Double.NaN;
+        }
+    }
+
+    // --- Lexing from the buffer -----------
+
+    // Next character without consuming it, -1 at end of input
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return chars[pos];
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = 0;
+        if (reader != null) {
+            int n = reader.read(chars, 0, chars.length);
+            limit = Math.max(n, 0);
+        } else {
+            bytes.clear();
+            int n = channel.read(bytes);
+            for (int i = 0; i < n; i++) {
+                chars[i] = (char) (bytes.get(i) & 0xFF);
+            }
+            limit = Math.max(n, 0);
+        }
+        seen |= limit > 0;
+        return limit > 0;
+    }
+
+    // Same rules and the same value as Lexer.readNumber
+    private double readNumber() throws IOException {
+        number.setLength(0);
+        boolean fraction = false;
+        int digits = 0;
+        for (int ch = peek(); ch >= 0; ch = peek()) {
+            if (isDigit(ch)) {
+                digits++;
+            } else if (ch == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+            number.append((char) ch);
+            pos++;
+        }
+        if (digits == 0) {
+            throw new IllegalArgumentException(Calculator.MISSING_OPERAND);
+        }
+        numberLexer.reset(number).next();
+        return numberLexer.number();
+    }
+
+    // Into name, cut after MAX_NAME characters
+    private void readName() throws IOException {
+        name.setLength(0);
+        for (int ch = peek(); ch >= 0 && (isNameStart(ch) || isDigit(ch)); ch = peek()) {
+            if (name.length() <= MAX_NAME) {
+                name.append((char) ch);
+            }
+            pos++;
+        }
+    }
+
+    // The next character that is not whitespace, -1 at end of input
+    private int skipWhitespace() throws IOException {
+        int ch = peek();
+        for (; ch >= 0 && Character.isWhitespace(ch); ch = peek()) {
+            pos++;
+        }
+        return ch;
+    }
+
+    private static boolean isDigit(int ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private static boolean isNameStart(int ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_';
+    }
+}
@@ -1,4 +1,26 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
 
 import static java.lang.System.out;
 
@@ -34,6 +56,15 @@ class Test {
         t("(1+10) ", "( 1 + 10 )");  // List is [ "(", "1", "+", "10", ")" ]
         t("2 *( 1+10) ", "2 * ( 1 + 10 )");
         t("(1 +2) /2 *( 1+10) ", "( 1 + 2 ) / 2 * ( 1 + 10 )");
+        t("1.5*.25", "1.5 * .25");
+
+        // Typed tokens, reusing one buffer
+        Lexer.Tokens tokens = new Lexer.Tokens();
+        Lexer lexer = new Lexer();
+        lexer.lex("12.5 ^(3)", tokens);
+        out.println(tokens.size() == 5 && tokens.number(0) == 12.5 && tokens.operator(1) == Operator.POW);
+        lexer.lex("0.1+2", tokens);
+        out.println(tokens.size() == 3 && tokens.number(0) == 0.1 && tokens.kind(1) == Lexer.Kind.OPERATOR);
 
 
 
@@ -50,6 +81,9 @@ class Test {
         i2p("4^3*2", "4 3 ^ 2 *");
         i2p("(1+2)*3", "1 2 + 3 *");
         i2p("2^(1+1)", "2 1 1 + ^");
+        i2p("(1+2*3^2)^2", "1 2 3 2 ^ * + 2 ^");
+        i2p("-2^2", "2 2 ^ neg");
+        i2p("2*-3%2", "2 3 neg * 2 %");
 
         // Evaluation ------------------------------
         // A value
@@ -94,7 +128,507 @@ class Test {
         // Mix priority and right and left associativity
         e(" 1 ^ 1 ^ 1 ^ 1  - 1", 0);
         e(" 4 - 2 - 1 ^ 2 ", 1);
+        e("1.5 * 3", 4.5);
+        e("(1 + 2 * 3 ^ 2) ^ 2", 361);
+
+        // Prefix minus and remainder from the operator table
+        e("-2 ^ 2", -4);
+        e("2 ^ -1", 0.5);
+        e("-(3 - 5) * -2", -4);
+        e("7 % 4 * 2", 6);
+        c("1 - -1", 2);
+        Operator larger = registerLarger();
+        try {
+            e("1 + 2 & 5 * 2", 11);
+            c("1 + 2 & 5 * 2", 11);
+        } finally {
+            Operator.unregister(larger);
+        }
+        out.println(calculator.evaluate("1 & 2").code == Result.Code.MISSING_OPERAND && Operator.infix('&') == null);
+        // The cached error goes when & is registered, and comes back without it
+        larger = registerLarger();
+        try {
+            out.println(calculator.evaluate("1 & 2").value == 2 && calculator.eval("1 & 2") == 2);
+        } finally {
+            Operator.unregister(larger);
+        }
+        out.println(calculator.evaluate("1 & 2").code == Result.Code.MISSING_OPERAND);
+
+        // Compiled expressions, evaluated more than once
+        c("3 * (10 + 2)", 36);
+        c("4 ^ 2 ^ 2 - 6 / 3", 254);
+
+        // Variables, bound per row or per column
+        CompiledExpression formula = calculator.compile("a * x ^ 2 + b");
+        out.println(formula.variables().equals(List.of("a", "x", "b")) && formula.slot("b") == 2);
+        out.println(formula.eval(new double[]{2, 3, 1}) == 19);
+        double[] ys = formula.evalColumns(Map.of("a", new double[]{1, 2}, "x", new double[]{4, 5},
+                "b", new double[]{0.5, 0.5}));
+        out.println(ys[0] == 16.5 && ys[1] == 50.5);
+
+        // Columnar evaluation gives the same as row by row
+        CompiledExpression poly = calculator.compile("-x * (x - 3) / (y % 7 + 1) + x ^ 0.5");
+        double[][] columns = new double[2][3000];
+        for (int i = 0; i < 3000; i++) {
+            columns[0][i] = i * 0.25;
+            columns[1][i] = 3000 - i;
+        }
+        double[] byRow = new double[3000];
+        double[] byColumn = new double[3000];
+        poly.evalRows(columns, byRow, 0, 3000);
+        poly.evalColumns(columns, byColumn, 0, 3000);
+        out.println(Arrays.equals(byRow, byColumn));
+        DoubleBuffer[] buffers = {DoubleBuffer.wrap(columns[0]), DoubleBuffer.wrap(columns[1])};
+        DoubleBuffer offHeap = ByteBuffer.allocateDirect(3000 * Double.BYTES).asDoubleBuffer();
+        new ColumnEvaluator(poly).eval(buffers, offHeap, 0, 3000);
+        out.println(offHeap.get(2999) == byRow[2999]);
+        // An invalid program fails before any row is written
+        try {
+            calculator.tryCompile("1 +").evalColumns(new double[0][], byColumn, 0, 4);
+            out.println(false);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.MISSING_OPERAND) && byColumn[1] == byRow[1]);
+        }
+
+        // Optimizer, same results, fewer instructions
+        o("(2 ^ 10) * x", 2, 3072);
+        o("x * 1 - 0 + --x / 1", 8, 6);
+        o("(x + 1) * (x + 1) + (x + 1)", 4, 20);
+        o("0 + x", 0, 3);
+        // Division by a folded zero fails at the same / as without folding
+        CompiledExpression divides = new Parser().parse("x / (1 - 1) + 2 * 3");
+        Optimizer optimizer = new Optimizer();
+        Result failed = optimizer.run(divides).evaluate(new double[]{3});
+        out.println(optimizer.removed() == 4 && failed.code == Result.Code.DIV_BY_ZERO && failed.position == 2
+                && divides.evaluate(new double[]{3}).position == 2);
+
+        // Jit, results and errors as interpreted
+        int threshold = CompiledExpression.jitThreshold();
+        CompiledExpression.setJitThreshold(2);
+        larger = registerLarger();
+        try {
+            CompiledExpression hot = calculator.compile("(x - 1) * -x ^ 2 / 4 % 3 + 7 & x");
+            double interpreted = hot.eval(new double[]{5});
+            hot.eval(new double[]{5});
+            out.println(hot.isJitted() && hot.eval(new double[]{5}) == interpreted);
+        } finally {
+            Operator.unregister(larger);
+        }
+        CompiledExpression hotDiv = calculator.compile("1 / (x - 1)");
+        hotDiv.eval(new double[]{3});
+        hotDiv.eval(new double[]{3});
+        try {
+            hotDiv.eval(new double[]{1});
+        } catch (IllegalArgumentException e) {
+            out.println(hotDiv.isJitted() && e.getMessage().equals(Calculator.DIV_BY_ZERO));
+        }
+        // A temporary is computed once by the Jit code too, ~x here
+        int[] calls = {0};
+        Operator counted = Operator.register(Operator.prefix('~', "~", 4, a -> ++calls[0] + a));
+        try {
+            CompiledExpression twice = new CompiledExpression.Builder().variable("x").operator(counted).store(0)
+                    .load(0).operator(Operator.MUL).build();
+            twice.eval(new double[]{1});
+            twice.eval(new double[]{1});
+            calls[0] = 0;
+            out.println(twice.isJitted() && twice.eval(new double[]{1}) == 4 && calls[0] == 1);
+        } finally {
+            Operator.unregister(counted);
+        }
+        CompiledExpression.setJitThreshold(threshold);
+
+        // Cache of compiled expressions
+        Calculator small = new Calculator(2);
+        small.eval("1 + 2");
+        small.eval(" 1  +   2 ");
+        small.eval("3 * 4");
+        small.eval("5 - 6");
+        out.println(small.cache().hits() == 1 && small.cache().misses() == 3);
+        out.println(small.cache().size() == 2 && small.cache().evictions() == 1);
+        out.println(ExpressionCache.normalize("\t1 +\n 2  ").equals("1 + 2"));
+
+
+        // Batches, in parallel, errors kept per item
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            batch.add(i % 10 == 0 ? i + " / 0" : i + " * 2");
+        }
+        List<Result> results = calculator.evalAll(batch);
+        out.println(results.size() == 1000 && results.get(7).value == 14
+                && Calculator.DIV_BY_ZERO.equals(results.get(10).error));
+        List<Result> streamed = new ArrayList<>();
+        calculator.evalAll(batch.iterator(), streamed::add, ForkJoinPool.commonPool());
+        out.println(streamed.size() == 1000 && streamed.get(999).value == 1998 && !streamed.get(990).isOk());
+
+        // Batches sharing subexpressions, same results as one by one
+        List<String> related = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            related.add("(1 + 2) ^ 3 * (4 - 1 / 3) + " + i + (i % 7 == 0 ? " / (2 - 2)" : " * (1 + 2)"));
+        }
+        related.add("2 * 3 4");
+        related.add("");
+        BatchCompiler shared = BatchCompiler.compile(related);
+        List<Result> sharedResults = shared.evaluate();
+        boolean agrees = true;
+        for (int i = 0; i < related.size(); i++) {
+            Result expected = calculator.evaluate(related.get(i));
+            agrees &= r(sharedResults.get(i), expected) && sharedResults.get(i).position == expected.position;
+        }
+        out.println(agrees && shared.dedupRatio() > 5);
+        BatchCompiler bound = BatchCompiler.compile(List.of("x * y + 1", "x * y - z", "1 / (x - 2)"));
+        List<Result> boundResults = bound.evaluate(new double[]{2, 3});
+        out.println(bound.variables().equals(List.of("x", "y", "z")) && boundResults.get(0).value == 7
+                && boundResults.get(1).code == Result.Code.MISSING_OPERAND && boundResults.get(1).position == 8
+                && boundResults.get(2).code == Result.Code.DIV_BY_ZERO);
+
+        // Errors returned with a code and the offset of the fault
+        Result unclosed = calculator.evaluate("1 + (2 * 3");
+        out.println(unclosed.code == Result.Code.MISSING_OPERATOR && unclosed.position == 10);
+        Result adjacent = calculator.evaluate("  2 *\t3   4");
+        out.println(adjacent.code == Result.Code.MISSING_OPERATOR && adjacent.position == 10);
+        Result byZero = calculator.evaluate("1 + 8 / (2 - 2)");
+        out.println(byZero.code == Result.Code.DIV_BY_ZERO && byZero.position == 6);
+        Result unbound = calculator.compile("1 + y").evaluate();
+        out.println(unbound.code == Result.Code.MISSING_OPERAND && unbound.position == 4);
+
+        // Metrics, only recorded while enabled
+        Calculator measured = new Calculator();
+        measured.eval("1 + 1");
+        measured.metrics().setEnabled(true);
+        measured.eval("1 + 2");
+        measured.evaluate("1 / 0");
+        measured.evaluate("1 2");
+        Metrics m = measured.metrics();
+        out.println(m.evaluations() == 3 && m.errors(Result.Code.DIV_BY_ZERO) == 1
+                && m.errors(Result.Code.MISSING_OPERATOR) == 1
+                && m.stage(Metrics.Stage.EVAL).count() == 1 && m.stage(Metrics.Stage.COMPILE).count() == 2);
+        // 1 + 2 folds to 3, 1 / 0 is left to fail when run
+        out.println(m.removed() == 2 && m.folded() == 1 && m.identities() == 0 && m.shared() == 0
+                && m.toPrometheus(null).contains("calculator_optimizer_simplified_total{kind=\"folded\"} 1\n"));
+        out.println(Metrics.Histogram.highestValue(Metrics.Histogram.index(1000)) >= 1000
+                && Metrics.Histogram.highestValue(Metrics.Histogram.index(1000)) < 1125);
+
+        // Incremental evaluation while editing, same as eval
+        IncrementalEvaluator editor = new IncrementalEvaluator();
+        boolean same = true;
+        larger = registerLarger();
+        try {
+            for (String text : new String[]{"1", "12", "12 +", "12 + 3", "12 + 3 *", "12 + 3 * (", "12 + 3 * (4",
+                    "12 + 3 * (4 - 1)", "12 + 3 * (4 - 1) /", "12 + 3 * (4 - 1) / 0", "12 + 3 * (4 - 1) / 0 7",
+                    "12 + 3 * (4 - 1) ^ 2", "-2 ^ 2 & 1", "x + 1", "1 $ 2", " ", ""}) {
+                same &= r(editor.setText(text).preview(), new Calculator(0).evaluate(text));
+            }
+        } finally {
+            Operator.unregister(larger);
+        }
+        out.println(same);
+        // Typed a character at a time, a name becomes a call when ( comes
+        editor.clear();
+        same = true;
+        for (String typed : new String[]{"max (1, 2)", "2 * min  (3) + x"}) {
+            for (int i = 0; i < typed.length(); i++) {
+                same &= r(editor.append(typed.substring(i, i + 1)).preview(),
+                        new Calculator(0).evaluate(typed.substring(0, i + 1)));
+            }
+            editor.clear();
+        }
+        out.println(same && editor.setText("max (1, 2)").preview().value == 2);
+        editor.setText("1" + " + 1".repeat(50000));
+        int parsed = editor.tokens();
+        editor.append("0").backspace().append("2");
+        out.println(editor.preview().value == 50012 && editor.tokens() == parsed);
+        out.println(Double.isNaN(editor.clear().preview().value) && editor.tokens() == 0);
+
+        // Streaming, memory bounded by nesting depth
+        StreamingEvaluator streaming = new StreamingEvaluator();
+        same = true;
+        larger = registerLarger();
+        try {
+            for (String text : new String[]{"12 + 3 * (4 - 1) ^ 2", "-2 ^ 2 & 1 % 3", "1 / 0 + 2", "1 / 0 3",
+                    "(1 + 2", "1 + 2)", "x", "2 .", " ", ""}) {
+                Result expected = new Calculator(0).evaluate(text);
+                try {
+                    same &= r(Result.ok(streaming.eval(text)), expected);
+                } catch (IllegalArgumentException ex) {
+                    same &= r(Result.error(ex.getMessage()), expected);
+                }
+            }
+        } finally {
+            Operator.unregister(larger);
+        }
+        out.println(same);
+        int deep = 1_000_000;
+        String nested = "(".repeat(deep) + "1" + " + 1)".repeat(deep);
+        out.println(streaming.eval(nested) == deep + 1 && streaming.capacity() <= 8 * deep);
+        try {
+            byte[] ascii = ("2 * " + Bench.generate(10_000, new Random(1)) + " + 0").getBytes();
+            double fromChannel = streaming.eval(Channels.newChannel(new ByteArrayInputStream(ascii)));
+            out.println(Double.compare(fromChannel, calculator.evaluate(new String(ascii)).value) == 0);
+        } catch (IOException ex) {
+            out.println(false);
+        }
+
+        // Decimal and exact rational evaluation
+        Numeric<BigDecimal> money = Numeric.decimal(MathContext.DECIMAL64);
+        out.println(calculator.eval("0.1 + 0.2", money).compareTo(new BigDecimal("0.3")) == 0);
+        out.println(calculator.eval("1 / 3 + 1 / 6", Numeric.RATIONAL).toString().equals("1/2"));
+        out.println(calculator.eval("2 ^ 64 - 2 ^ 64 + 7 % 4 * -1", Numeric.RATIONAL).toString().equals("-3"));
+        out.println(calculator.eval("10 ^ 20 / 10 ^ 17", money).intValueExact() == 1000
+                && calculator.eval("3 * 3 - 2 ^ 3", Numeric.DOUBLE) == 1);
+        // Literals longer than a double are read from the text
+        out.println(calculator.eval("0.12345678901234567890123 * 1",
+                Numeric.decimal(MathContext.DECIMAL128)).toString().equals("0.12345678901234567890123")
+                && calculator.eval("12345678901234567891 - 12345678901234567890", Numeric.RATIONAL).toString()
+                        .equals("1")
+                && calculator.eval("2.00000000000000000000 * 3", Numeric.RATIONAL).toString().equals("6"));
+        // Its stacks come from the pooled contexts, threads do not keep their own
+        CompiledExpression integers = calculator.compile("(7 + 5) * 3 - max(2, 4)");
+        Runnable exactly = () -> Numeric.RATIONAL.eval(integers);
+        for (int i = 0; i < 200; i++) {
+            runOnNewThread(exactly);
+        }
+        long pooled = EvalContext.created() + EvalContext.grown();
+        for (int i = 0; i < 200; i++) {
+            runOnNewThread(exactly);
+        }
+        out.println(EvalContext.created() + EvalContext.grown() == pooled
+                && Numeric.RATIONAL.eval(integers).toString().equals("32"));
+        for (String text : new String[]{"2 ^ 0.5", "1 / (2 - 2)", "x + 1"}) {
+            try {
+                calculator.eval(text, Numeric.RATIONAL);
+                out.println(false);
+            } catch (IllegalArgumentException ex) {
+                out.println(ex.getMessage().equals(text.startsWith("2") ? Calculator.NOT_EXACT
+                        : text.startsWith("1") ? Calculator.DIV_BY_ZERO : Calculator.MISSING_OPERAND));
+            }
+        }
+
+        // Compiled expressions saved and loaded again
+        Calculator warm = new Calculator(16);
+        larger = registerLarger();
+        try {
+            warm.eval("1 + 2 * 3");
+            warm.eval("2 & 5 - 1");
+            warm.eval("1 / 4");
+            try {
+                Path file = Files.createTempFile("calc", ".store");
+                out.println(ExpressionStore.save(warm.cache(), file) == 3);
+                Calculator restarted = new Calculator(16);
+                out.println(ExpressionStore.load(file, restarted.cache()) == 3
+                        && restarted.eval("2 & 5 - 1") == 4 && restarted.eval("1 / 4") == 0.25
+                        && restarted.cache().misses() == 0);
+                byte[] bytes = Files.readAllBytes(file);
+                bytes[bytes.length / 2] ^= 1;
+                ExpressionStore.read(ByteBuffer.wrap(bytes), restarted.cache());
+                out.println(false);
+            } catch (IOException ex) {
+                out.println(ex.getMessage().equals("Store checksum mismatch"));
+            }
+            // A failed save leaves no temporary file behind
+            try {
+                Path taken = Files.createTempDirectory("calc");
+                Path inside = Files.createFile(taken.resolve("inside"));
+                try {
+                    ExpressionStore.save(warm.cache(), taken);
+                    out.println(false);
+                } catch (IOException ex) {
+                    out.println(!Files.exists(taken.resolveSibling(taken.getFileName() + ".tmp")));
+                } finally {
+                    Files.delete(inside);
+                    Files.delete(taken);
+                }
+            } catch (IOException ex) {
+                out.println(false);
+            }
+        } finally {
+            Operator.unregister(larger);
+        }
+
+        // Asynchronous, and as a Flow stage with bounded buffers
+        out.println(Calculator.DIV_BY_ZERO.equals(calculator.evalAsync("1 / 0").join().error)
+                && calculator.evalAsync("6 * 7").join().value == 42);
+        EvalProcessor processor = new EvalProcessor(calculator, ForkJoinPool.commonPool(), 8);
+        List<Result> flowed = new ArrayList<>();
+        CompletableFuture<Void> done = processor.consume(flowed::add);
+        try (SubmissionPublisher<String> source = new SubmissionPublisher<>(ForkJoinPool.commonPool(), 8)) {
+            source.subscribe(processor);
+            for (int i = 0; i < 100; i++) {
+                source.submit(i + " / " + (i % 10));
+            }
+        }
+        done.join();
+        out.println(flowed.size() == 100 && flowed.get(99).value == 11 && !flowed.get(10).isOk()
+                && processor.queueDepth() == 0);
+
+        // Pooled evaluation contexts, nothing allocated in steady state
+        Runnable evaluation = () -> calculator.eval("(1 + 2) * 3 - 4 / 2");
+        for (int i = 0; i < 200; i++) {
+            runOnNewThread(evaluation);
+        }
+        long contexts = EvalContext.created();
+        for (int i = 0; i < 200; i++) {
+            runOnNewThread(evaluation);
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < CompiledExpression.jitThreshold() + 1000; i++) {
+            evaluation.run();
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 10_000; i++) {
+            evaluation.run();
+        }
+        allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+        out.println(EvalContext.created() == contexts && allocated < 10_000);
+
+        // Web server responses, encoded as String.valueOf and getBytes would
+        WebCalcServer.ResponseBuffer response = WebCalcServer.ResponseBuffer.take();
+        boolean encoded = true;
+        for (double v : new double[]{0, -0.0, 42, -7, 9999999, 1e7, 0.1, Double.NaN, -1.0 / 0}) {
+            response.reset();
+            encoded &= Arrays.equals(Arrays.copyOf(response.appendDouble(v).bytes, response.size),
+                    String.valueOf(v).getBytes(StandardCharsets.UTF_8));
+        }
+        response.reset();
+        response.appendUtf8("\u221a \u00e9 \ud835\udc65");
+        encoded &= new String(response.bytes, 0, response.size, StandardCharsets.UTF_8)
+                .equals("\u221a \u00e9 \ud835\udc65");
+        response.release();
+        out.println(encoded);
+        byte[] form = "a=1&Expression=%E2%88%9A+2%2B3%&b=2".getBytes(StandardCharsets.UTF_8);
+        out.println(WebCalcServer.FormDecoder.field(form, form.length, "Expression").equals("\u221a 2+3%")
+                && WebCalcServer.FormDecoder.field(form, form.length, "c") == null);
+        try {
+            WebCalcServer.main(new String[]{"--log", "off", "--port"});
+            out.println(false);
+        } catch (IllegalArgumentException | IOException ex) {
+            out.println(ex.getMessage().equals("Missing value for option --port"));
+        }
+
+        // Function calls, any number of arguments
+        c("sqrt(16) + abs(-2)", 6);
+        c("max(1, 5, 3) - min(4, 2 * 3)", 1);
+        c("pow(2, 10) / max(2)", 512);
+        c("hypot(3, 4) ^ 2 + floor(-1.5)", 23);
+        out.println(calculator.compile("max(x, y, 1) + sqrt(x * x)").eval(new double[]{-3, -2}) == 4);
+        Result noArguments = calculator.evaluate("1 + max()");
+        Result tooMany = calculator.evaluate("2 * sqrt(1, 2)");
+        Result unknown = calculator.evaluate("1 + foo(2)");
+        out.println(noArguments.code == Result.Code.WRONG_ARGUMENTS && noArguments.position == 4
+                && tooMany.code == Result.Code.WRONG_ARGUMENTS && tooMany.position == 4
+                && unknown.code == Result.Code.OP_NOT_FOUND
+                && calculator.evaluate("1, 2").code == Result.Code.MISSING_OPERATOR
+                && calculator.evaluate("max(1,)").code == Result.Code.MISSING_OPERAND);
+        same = true;
+        for (String text : new String[]{"max(1, 2 * 3, -4) + sqrt(16)", "-sqrt(4) ^ 2", "min(1 / 0, 2)",
+                "atan2(1, 1) * 4", "max(1 2)", "max(1,", "sqrt()", "1 + foo(2)", "(1, 2)"}) {
+            Result expected = calculator.evaluate(text);
+            same &= r(editor.setText(text).preview(), expected);
+            try {
+                same &= r(Result.ok(streaming.eval(text)), expected);
+            } catch (IllegalArgumentException ex) {
+                same &= r(Result.error(ex.getMessage()), expected);
+            }
+            try {
+                List<String> postfix = calculator.infix2Postfix(calculator.tokenize(text));
+                same &= r(Result.ok(calculator.evalPostfix(postfix)), expected);
+            } catch (IllegalArgumentException ex) {
+                same &= r(Result.error(ex.getMessage()), expected);
+            }
+        }
+        out.println(same);
+        Optimizer folding = new Optimizer();
+        CompiledExpression folded = folding.run(new Parser().parse("x + sqrt(16) * max(1, 2)"));
+        out.println(folding.removed() == 5 && folded.eval(new double[]{1}) == 9);
+
+        // Powers the same as Math.pow, fast math by repeated squaring or with a bounded error
+        Random random = new Random(24);
+        boolean powers = true;
+        for (int n = -MathFunction.MAX_INT_EXPONENT; n <= MathFunction.MAX_INT_EXPONENT; n++) {
+            double a = (random.nextDouble() - 0.5) * 20;
+            double bits = Double.longBitsToDouble(random.nextLong());
+            for (double b : new double[]{0, -0.0, 1, 2, n, n / 4.0}) {
+                powers &= Double.compare(MathFunction.power(a, b), Math.pow(a, b)) == 0
+                        && Double.compare(MathFunction.power(bits, b), Math.pow(bits, b)) == 0;
+            }
+            powers &= MathFunction.fastPow(2, n) == Math.pow(2, n) && MathFunction.fastPow(-3, n % 30) == Math.pow(-3, n % 30)
+                    && Math.abs(MathFunction.fastPow(a, n) - Math.pow(a, n)) <= 64 * Math.ulp(Math.pow(a, n));
+        }
+        out.println(powers && MathFunction.power(1e200, 2) == Double.POSITIVE_INFINITY
+                && MathFunction.power(0, -1) == Double.POSITIVE_INFINITY && Double.isNaN(MathFunction.power(-8, 1.0 / 3))
+                && MathFunction.fastPow(1e200, 2) == Double.POSITIVE_INFINITY && MathFunction.fastPow(0, -1) == Double.POSITIVE_INFINITY);
+        boolean bounded = true;
+        for (int i = 0; i < 100_000; i++) {
+            double x = (random.nextDouble() - 0.5) * 1400;
+            double y = Math.exp((random.nextDouble() - 0.5) * 1400);
+            bounded &= Math.abs(MathFunction.fastExp(x) - Math.exp(x)) <= 2e-7 * Math.exp(x)
+                    && Math.abs(MathFunction.fastLog(y) - Math.log(y)) <= 1e-9;
+        }
+        out.println(bounded && Double.isNaN(MathFunction.fastLog(-1)) && MathFunction.fastExp(1000) == Math.exp(1000));
+        CompiledExpression growth = calculator.compile("exp(x) * log(y) + y ^ 2.5 + x ^ 3");
+        double[] xy = {2.5, 7};
+        double exact = growth.evaluate(xy).value;
+        EvalContext fastContext = EvalContext.acquire().fastMath(true);
+        try {
+            double fast = growth.evaluate(xy, fastContext).value;
+            out.println(fast != exact && Math.abs(fast - exact) < 1e-6 * exact
+                    && growth.evaluate(xy, fastContext.fastMath(false)).value == exact);
+        } finally {
+            fastContext.release();
+        }
+
+        // Calls saved and loaded by function name
+        Calculator withCalls = new Calculator(16);
+        withCalls.eval("max(1, 2, 3) + sqrt(4)");
+        try {
+            Path file = Files.createTempFile("calc", ".store");
+            ExpressionStore.save(withCalls.cache(), file);
+            Calculator reloaded = new Calculator(16);
+            out.println(ExpressionStore.load(file, reloaded.cache()) == 1
+                    && reloaded.eval("max(1, 2, 3) + sqrt(4)") == 5 && reloaded.cache().misses() == 0);
+        } catch (IOException ex) {
+            out.println(false);
+        }
 
+        // Batch mode, one result line per input line in input order, on any number of threads
+        REPL repl = new REPL();
+        StringBuilder lines = new StringBuilder();
+        StringBuilder expectedLines = new StringBuilder();
+        for (int i = 0; i < 2_000; i++) {
+            lines.append(i).append(" * 2\n7 / 0\n1 +\n");
+            expectedLines.append(i * 2.0).append('\n').append(Calculator.DIV_BY_ZERO).append('\n')
+                    .append(Calculator.MISSING_OPERAND).append('\n');
+        }
+        boolean batched = true;
+        for (int workers : new int[]{0, 1, 4}) {
+            StringWriter written = new StringWriter();
+            try (BufferedWriter w = new BufferedWriter(written)) {
+                repl.batch(new BufferedReader(new StringReader(lines.toString())), w, 100, workers);
+            } catch (IOException ex) {
+                batched = false;
+            }
+            batched &= written.toString().replace(System.lineSeparator(), "\n").equals(expectedLines.toString());
+        }
+        out.println(batched);
+        try {
+            repl.batch(new String[]{"--flush", "10", "--in"});
+            out.println(false);
+        } catch (IllegalArgumentException | IOException ex) {
+            out.println(ex.getMessage().equals("Missing value for option --in"));
+        }
+
+        // Random expressions, every engine the same as the reference
+        Fuzz fuzz = new Fuzz(25, 0, 5_000, 0).run();
+        out.println(fuzz.checked() == 5_000 && fuzz.mismatches().isEmpty());
+        out.println(Fuzz.reference("2 ^ 3 ^ 2 - -2 ^ 2 * max(1, 3) % 5").value == 514
+                && Fuzz.reference("1 2 + *").code == Result.Code.MISSING_OPERATOR
+                && Fuzz.reference("(1 +").code == Result.Code.MISSING_OPERATOR
+                && Fuzz.reference("x / 0").code == Result.Code.MISSING_OPERAND
+                && Fuzz.reference("sqrt(4) / (1 - 1)").code == Result.Code.DIV_BY_ZERO
+                && Fuzz.reference("max() + foo(").code == Result.Code.WRONG_ARGUMENTS);
+        out.println(Fuzz.generate(7, 3).equals(Fuzz.generate(7, 3)) && !Fuzz.generate(1, 7).equals(Fuzz.generate(2, 7)));
+        out.println(Fuzz.shrink("2 + 3 * (4 - 5 / (6 - 6)) ^ 2",
+                s -> calculator.evaluate(s).code == Result.Code.DIV_BY_ZERO).equals("0 / 0"));
 
         // Exceptions -----------------------------------
         try {
@@ -122,6 +656,36 @@ class Test {
         } catch (IllegalArgumentException e) {
             out.println(e.getMessage().equals(Calculator.MISSING_OPERATOR));
         }
+        try {
+            e("7 % 0", 0);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.DIV_BY_ZERO));
+        }
+        try {
+            c("2 (3)", 0);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.MISSING_OPERATOR));
+        }
+        try {
+            e(")1 + 2(", 0);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.MISSING_OPERATOR));
+        }
+        try {
+            e("1 + a", 0);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.MISSING_OPERAND));
+        }
+        try {
+            e("1 2 + *", 0);    // The first error, not the one found by tokenize
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.MISSING_OPERATOR));
+        }
+        try {
+            e("hypot() max(", 0);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.WRONG_ARGUMENTS));
+        }
 
     }
 
@@ -150,6 +714,42 @@ class Test {
         out.println(result == expected);
     }
 
+    // Optimize with x = 3, check instructions removed and value
+    void o(String infix, int removed, double expected) {
+        CompiledExpression plain = new Parser().parse(infix);
+        Optimizer optimizer = new Optimizer();
+        CompiledExpression optimized = optimizer.run(plain);
+        double[] x = {3};
+        out.println(optimizer.removed() == removed && plain.eval(x) == expected && optimized.eval(x) == expected);
+    }
+
+    // Register & as the larger of its operands, callers unregister it
+    Operator registerLarger() {
+        return Operator.register(Operator.binary('&', 3, Calculator.Assoc.LEFT, Math::max));
+    }
+
+    void runOnNewThread(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Same value or same error
+    boolean r(Result actual, Result expected) {
+        return actual.isOk() ? Double.compare(actual.value, expected.value) == 0 && expected.isOk()
+                : actual.error.equals(expected.error);
+    }
+
+    // Compile once, evaluate twice
+    void c(String infix, double expected) {
+        CompiledExpression compiled = calculator.compile(infix);
+        out.println(compiled.eval() == expected && compiled.eval() == expected);
+    }
+
 
 
 }
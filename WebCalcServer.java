@@ -1,17 +1,29 @@
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import static java.lang.System.out;
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_OK;
 
 /*
@@ -19,68 +31,685 @@ import static java.net.HttpURLConnection.HTTP_OK;
         A Server to be able to do calculation on the Web
         Start this and visit localhost:8080
 
-        **** NOTHING TO DO HERE ****
+        Options: --port n, --threads n (0 = virtual threads if the JDK has
+        them, else one per core), --log off|error|info|debug (default error,
+        info logs a line per evaluation), --metrics on|off,
+        --store file (compiled expressions are loaded from file at startup and
+        saved to it at shutdown), --snapshot n (also save every n seconds)
+
+        GET /metrics gives the Calculator metrics in Prometheus text format,
+        /metrics?enabled=false (or true) switches recording at runtime.
+
+        POST /api/eval takes and returns JSON, one expression or a batch:
+          {"expr":"1+2"}             ->  {"value":3.0}
+          {"exprs":["1+2","1/0"]}    ->  {"results":[{"value":3.0},{"error":"Division with 0","position":1}]}
+
+        position is the character offset of the fault in the expression,
+        left out when it is not known.
+
+        Responses are written into pooled ResponseBuffers. The page is encoded
+        once, only the result is written per request, and form posts are
+        decoded straight from the request bytes. Responses of GZIP_MIN_BYTES
+        or more are gzipped for clients that accept it. Every exchange is
+        drained and closed, so the connection is kept alive for the next
+        request.
 
  */
 public class WebCalcServer {
 
     public static void main(String[] args) throws IOException {
-        new WebCalcServer().run();
+        WebCalcServer server = new WebCalcServer();
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for option " + args[i]);
+            }
+            switch (args[i]) {
+                case "--port":
+                    server.port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    server.threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--metrics":
+                    server.calc.metrics().setEnabled(args[i + 1].equals("on"));
+                    break;
+                case "--store":
+                    server.store = Paths.get(args[i + 1]);
+                    break;
+                case "--snapshot":
+                    server.snapshotSeconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--log":
+                    server.logLevel = LogLevel.valueOf(args[i + 1].toUpperCase(Locale.ROOT));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        server.run();
+    }
+
+    enum LogLevel {
+        OFF,
+        ERROR,
+        INFO,       // One line per evaluation
+        DEBUG       // Also method and URI of every request
     }
 
     public final int DEFAULT_PORT = 8080;
     public final String HOME_URL = "/";
-    private final Calculator calc = new Calculator();
+    public final String API_URL = "/api/eval";
+    public final String METRICS_URL = "/metrics";
+    public final int CACHE_SIZE = 8192;
+    // Smaller responses are sent as they are, compressing them saves little
+    static final int GZIP_MIN_BYTES = 1024;
+    private final Calculator calc = new Calculator(CACHE_SIZE);
+
+    {
+        calc.metrics().setEnabled(true);
+    }
+
+    // The page before and after the result, encoded once
+    private final byte[] pageStart;
+    private final byte[] pageEnd;
+
+    {
+        String mark = "\u0000";
+        String page = new PageBuilder().addTitle("Welcome to WebCalc")
+                .addH1("Welcome to WebCalc")
+                .addForm("/", "Enter expression", Arrays.asList("Expression"))
+                .addParagraph("Result = " + mark)
+                .toString();
+        int at = page.indexOf(mark);
+        pageStart = page.substring(0, at).getBytes(StandardCharsets.UTF_8);
+        pageEnd = page.substring(at + mark.length()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int port = DEFAULT_PORT;
+    private int threads = 0;
+    private volatile LogLevel logLevel = LogLevel.ERROR;
+    private Path store;
+    private int snapshotSeconds;
 
     private void run() throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(DEFAULT_PORT), 0);
+        if (store != null) {
+            restore();
+        }
+        // Headers and body are written separately, with Nagle on each small
+        // response waits for the client's delayed ack (about 40 ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(threads > 0 ? Workers.fixed(threads) : Workers.virtualOrFixed(0));
         HttpContext context = server.createContext(HOME_URL);
         context.setHandler(this::handleRequest);
+        server.createContext(API_URL).setHandler(this::handleApiRequest);
+        server.createContext(METRICS_URL).setHandler(this::handleMetricsRequest);
         server.start();
         out.println("Server started. In a web browser, visit localhost:" + server.getAddress().getPort());
     }
 
+    // --- Warm starts from an ExpressionStore -----------
+
+    private void restore() {
+        if (Files.exists(store)) {
+            try {
+                long start = System.nanoTime();
+                int n = ExpressionStore.load(store, calc.cache());
+                log(LogLevel.INFO, "Loaded " + n + " expressions from " + store + " in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+            } catch (IOException e) {
+                // Start cold, the next snapshot replaces the file
+                log(LogLevel.ERROR, "Could not load " + store + ": " + e.getMessage());
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::snapshot, "calculator-snapshot"));
+        if (snapshotSeconds > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "calculator-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleWithFixedDelay(this::snapshot, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private synchronized void snapshot() {
+        try {
+            int n = ExpressionStore.save(calc.cache(), store);
+            log(LogLevel.DEBUG, "Saved " + n + " expressions to " + store);
+        } catch (IOException e) {
+            log(LogLevel.ERROR, "Could not save " + store + ": " + e.getMessage());
+        }
+    }
+
     // Main method to handle HTTP requests
     private void handleRequest(HttpExchange exchange) {
+        ResponseBuffer buffer = ResponseBuffer.take();
         try {
-            out.println(exchange.getRequestMethod());
-            out.println(exchange.getRequestURI());
+            if (logs(LogLevel.DEBUG)) {
+                log(LogLevel.DEBUG, exchange.getRequestMethod() + " " + exchange.getRequestURI());
+            }
             if (exchange.getRequestMethod().equals("GET")) {
-                String page = getPage(Double.NaN);
-                sendResponse(exchange, page);
+                writePage(buffer, null);
             } else if (exchange.getRequestMethod().equals("POST")) {
-                Scanner sc = new Scanner(exchange.getRequestBody());
-                String args = sc.nextLine();
                 // This is "Expression=1+2 ..."
-                String expr = args.split("=")[1];
-                expr = URLDecoder.decode(expr, "UTF-8");
-                double result = calc.eval(expr);
-                out.println(expr + " = " + result);
-                sendResponse(exchange, getPage(result));
+                buffer.readFrom(exchange.getRequestBody());
+                String expr = FormDecoder.field(buffer.bytes, buffer.size, "Expression");
+                buffer.reset();
+                Result result = calc.evaluate(expr != null ? expr : "");
+                if (logs(LogLevel.INFO)) {
+                    log(LogLevel.INFO, expr + " = " + result);
+                }
+                writePage(buffer, result);
+            } else {
+                exchange.getResponseHeaders().set("Allow", "GET, POST");
+                buffer.appendAscii("Use GET or POST");
+                send(exchange, HTTP_BAD_METHOD, "text/plain; charset=utf-8", buffer);
+                return;
+            }
+            send(exchange, HTTP_OK, "text/html; charset=utf-8", buffer);
+        } catch (IOException | RuntimeException e) {
+            log(LogLevel.ERROR, "An exception occurred " + e.getMessage());
+        } finally {
+            buffer.release();
+            exchange.close();
+        }
+    }
+
+    // JSON evaluation, no HTML involved
+    private void handleApiRequest(HttpExchange exchange) {
+        ResponseBuffer buffer = ResponseBuffer.take();
+        try {
+            if (logs(LogLevel.DEBUG)) {
+                log(LogLevel.DEBUG, exchange.getRequestMethod() + " " + exchange.getRequestURI());
+            }
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                buffer.appendAscii("{\"error\":\"Use POST\"}");
+                send(exchange, HTTP_BAD_METHOD, "application/json", buffer);
+                return;
+            }
+            buffer.readFrom(exchange.getRequestBody());
+            String body = new String(buffer.bytes, 0, buffer.size, StandardCharsets.UTF_8);
+            buffer.reset();
+            JsonRequest request;
+            try {
+                request = JsonRequest.parse(body);
+            } catch (IllegalArgumentException e) {
+                buffer.appendAscii("{\"error\":").appendUtf8(JsonRequest.quote(e.getMessage())).append('}');
+                send(exchange, HTTP_BAD_REQUEST, "application/json", buffer);
+                return;
+            }
+            if (request.batch) {
+                List<Result> results = request.exprs.size() > Calculator.BATCH_CHUNK
+                        ? calc.evalAll(request.exprs)
+                        : evalEach(request.exprs);
+                buffer.appendAscii("{\"results\":[");
+                for (int i = 0; i < results.size(); i++) {
+                    JsonRequest.appendResult(i > 0 ? buffer.append(',') : buffer, results.get(i));
+                }
+                buffer.appendAscii("]}");
+                if (logs(LogLevel.INFO)) {
+                    log(LogLevel.INFO, "batch of " + results.size());
+                }
             } else {
-                sendResponse(exchange, "En Error occurred");
+                String expr = request.exprs.get(0);
+                Result result = calc.evaluate(expr);
+                JsonRequest.appendResult(buffer, result);
+                if (logs(LogLevel.INFO)) {
+                    log(LogLevel.INFO, expr + " = " + result);
+                }
             }
-        } catch (IOException ioe) {
-            out.println("An exception occurred " + ioe.getMessage());
+            send(exchange, HTTP_OK, "application/json", buffer);
+        } catch (IOException | RuntimeException e) {
+            log(LogLevel.ERROR, "An exception occurred " + e.getMessage());
+        } finally {
+            buffer.release();
+            exchange.close();
         }
     }
 
+    // Prometheus scrape endpoint
+    private void handleMetricsRequest(HttpExchange exchange) {
+        ResponseBuffer buffer = ResponseBuffer.take();
+        try {
+            String query = exchange.getRequestURI().getQuery();
+            if (query != null && query.startsWith("enabled=")) {
+                calc.metrics().setEnabled(Boolean.parseBoolean(query.substring("enabled=".length())));
+            }
+            buffer.appendUtf8(calc.metrics().toPrometheus(calc.cache()));
+            send(exchange, HTTP_OK, "text/plain; version=0.0.4", buffer);
+        } catch (IOException | RuntimeException e) {
+            log(LogLevel.ERROR, "An exception occurred " + e.getMessage());
+        } finally {
+            buffer.release();
+            exchange.close();
+        }
+    }
+
+    private List<Result> evalEach(List<String> exprs) {
+        List<Result> results = new ArrayList<>(exprs.size());
+        for (String expr : exprs) {
+            results.add(calc.evaluate(expr));
+        }
+        return results;
+    }
+
     // ---------- Helper Methods ----------------
 
-    private String getPage(double result) {
-        PageBuilder pb = new PageBuilder();
-        return pb.addTitle("Welcome to WebCalc")
-                .addH1("Welcome to WebCalc")
-                .addForm("/", "Enter expression", Arrays.asList("Expression"))
-                .addParagraph("Result = " + result)
-                .toString();
+    // Whether messages of level are logged. Per request messages are only
+    // built if they are, so requests allocate nothing for logging while off.
+    private boolean logs(LogLevel level) {
+        return level.compareTo(logLevel) <= 0;
+    }
+
+    private void log(LogLevel level, String message) {
+        if (logs(level)) {
+            out.println(message);
+        }
+    }
+
+    // The page with result (NaN if null) in it, as Result.toString shows it
+    private void writePage(ResponseBuffer buffer, Result result) {
+        buffer.append(pageStart, 0, pageStart.length);
+        if (result == null) {
+            buffer.appendDouble(Double.NaN);
+        } else if (result.isOk()) {
+            buffer.appendDouble(result.value);
+        } else {
+            buffer.appendUtf8(result.error);
+            if (result.position >= 0) {
+                buffer.appendAscii(" at ").appendLong(result.position);
+            }
+        }
+        buffer.append(pageEnd, 0, pageEnd.length);
+    }
+
+    // Send the content of buffer, gzipped if it is large and the client
+    // accepts that
+    private static void send(HttpExchange exchange, int status, String contentType, ResponseBuffer buffer)
+            throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", contentType);
+        ResponseBuffer body = buffer;
+        ResponseBuffer zipped = null;
+        try {
+            if (buffer.size >= GZIP_MIN_BYTES) {
+                headers.set("Vary", "Accept-Encoding");
+                if (acceptsGzip(exchange.getRequestHeaders())) {
+                    zipped = ResponseBuffer.take();
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(zipped, 8192)) {
+                        gzip.write(buffer.bytes, 0, buffer.size);
+                    }
+                    headers.set("Content-Encoding", "gzip");
+                    body = zipped;
+                }
+            }
+            // A length of 0 would mean chunked, -1 is no body
+            exchange.sendResponseHeaders(status, body.size > 0 ? body.size : -1);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body.bytes, 0, body.size);
+            os.close();
+        } finally {
+            if (zipped != null) {
+                zipped.release();
+            }
+        }
+    }
+
+    private static boolean acceptsGzip(Headers headers) {
+        List<String> values = headers.get("Accept-Encoding");
+        if (values != null) {
+            for (String value : values) {
+                if (value.contains("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // --- Helper class for the JSON API, just the subset it needs -----------
+
+    static class JsonRequest {
+        final List<String> exprs = new ArrayList<>();
+        boolean batch;
+
+        // {"expr":"..."} or {"exprs":["...", ...]}
+        static JsonRequest parse(String json) {
+            JsonRequest request = new JsonRequest();
+            Cursor c = new Cursor(json);
+            c.expect('{');
+            String key = c.string();
+            c.expect(':');
+            if (key.equals("expr")) {
+                request.exprs.add(c.string());
+            } else if (key.equals("exprs")) {
+                request.batch = true;
+                c.expect('[');
+                if (!c.peek(']')) {
+                    do {
+                        request.exprs.add(c.string());
+                    } while (c.peek(','));
+                }
+                c.expect(']');
+            } else {
+                throw new IllegalArgumentException("Expected expr or exprs");
+            }
+            c.expect('}');
+            c.end();
+            return request;
+        }
+
+        static void appendResult(ResponseBuffer out, Result result) {
+            if (!result.isOk()) {
+                out.appendAscii("{\"error\":").appendUtf8(quote(result.error));
+                if (result.position >= 0) {
+                    out.appendAscii(",\"position\":").appendLong(result.position);
+                }
+                out.append('}');
+            } else if (Double.isFinite(result.value)) {
+                out.appendAscii("{\"value\":").appendDouble(result.value).append('}');
+            } else {
+                out.appendAscii("{\"value\":\"").appendDouble(result.value).appendAscii("\"}");
+            }
+        }
+
+        static String quote(String s) {
+            StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    sb.append('\\').append(ch);
+                } else if (ch < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) ch));
+                } else {
+                    sb.append(ch);
+                }
+            }
+            return sb.append('"').toString();
+        }
+
+        private static class Cursor {
+            final String s;
+            int pos;
+
+            Cursor(String s) {
+                this.s = s;
+            }
+
+            void skipSpace() {
+                while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                    pos++;
+                }
+            }
+
+            // Consume ch if it is next
+            boolean peek(char ch) {
+                skipSpace();
+                if (pos < s.length() && s.charAt(pos) == ch) {
+                    if (ch == ',') {
+                        pos++;
+                    }
+                    return true;
+                }
+                return false;
+            }
+
+            void expect(char ch) {
+                skipSpace();
+                if (pos >= s.length() || s.charAt(pos) != ch) {
+                    throw new IllegalArgumentException("Expected " + ch + " at " + pos);
+                }
+                pos++;
+            }
+
+            void end() {
+                skipSpace();
+                if (pos != s.length()) {
+                    throw new IllegalArgumentException("Unexpected input at " + pos);
+                }
+            }
+
+            String string() {
+                expect('"');
+                StringBuilder sb = new StringBuilder();
+                while (pos < s.length() && s.charAt(pos) != '"') {
+                    char ch = s.charAt(pos++);
+                    if (ch == '\\' && pos < s.length()) {
+                        sb.append(unescape());
+                    } else {
+                        sb.append(ch);
+                    }
+                }
+                expect('"');
+                return sb.toString();
+            }
+
+            private char unescape() {
+                char ch = s.charAt(pos++);
+                switch (ch) {
+                    case 'n':
+                        return '\n';
+                    case 't':
+                        return '\t';
+                    case 'r':
+                        return '\r';
+                    case 'b':
+                        return '\b';
+                    case 'f':
+                        return '\f';
+                    case 'u':
+                        if (pos + 4 > s.length()) {
+                            throw new IllegalArgumentException("Bad escape at " + pos);
+                        }
+                        pos += 4;
+                        return (char) Integer.parseInt(s.substring(pos - 4, pos), 16);
+                    default:
+                        return ch;
+                }
+            }
+        }
+    }
+
+    // --- Pooled byte buffers for requests and responses -----------
+
+    // A growable byte array, written as an OutputStream or appended to like a
+    // StringBuilder but encoding to UTF-8 as it goes. take one from the pool
+    // and release it when the response is sent. Not thread-safe.
+    static final class ResponseBuffer extends OutputStream {
+        private static final int POOL_SIZE = 64;
+        // Larger buffers are left to the GC, a big batch should not pin memory
+        private static final int MAX_POOLED = 1 << 16;
+        private static final ArrayBlockingQueue<ResponseBuffer> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+        byte[] bytes = new byte[4096];
+        int size;
+
+        static ResponseBuffer take() {
+            ResponseBuffer buffer = POOL.poll();
+            return buffer != null ? buffer : new ResponseBuffer();
+        }
+
+        void release() {
+            if (bytes.length <= MAX_POOLED) {
+                reset();
+                POOL.offer(this);
+            }
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        // Append all of in
+        ResponseBuffer readFrom(InputStream in) throws IOException {
+            for (int n = 0; n >= 0; n = in.read(bytes, size, bytes.length - size)) {
+                size += n;
+                ensure(1);
+            }
+            return this;
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            append(b, off, len);
+        }
+
+        ResponseBuffer append(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+            return this;
+        }
+
+        ResponseBuffer append(char ch) {
+            write(ch);
+            return this;
+        }
+
+        // s must only hold ASCII characters
+        ResponseBuffer appendAscii(CharSequence s) {
+            int len = s.length();
+            ensure(len);
+            for (int i = 0; i < len; i++) {
+                bytes[size++] = (byte) s.charAt(i);
+            }
+            return this;
+        }
+
+        ResponseBuffer appendUtf8(CharSequence s) {
+            int len = s.length();
+            ensure(len);
+            for (int i = 0; i < len; i++) {
+                char ch = s.charAt(i);
+                if (ch < 0x80) {
+                    ensure(1);
+                    bytes[size++] = (byte) ch;
+                } else if (ch < 0x800) {
+                    ensure(2);
+                    bytes[size++] = (byte) (0xC0 | ch >> 6);
+                    bytes[size++] = (byte) (0x80 | ch & 0x3F);
+                } else if (Character.isHighSurrogate(ch) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(ch, s.charAt(++i));
+                    ensure(4);
+                    bytes[size++] = (byte) (0xF0 | cp >> 18);
+                    bytes[size++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | cp & 0x3F);
+                } else if (Character.isSurrogate(ch)) {
+                    ensure(1);
+                    bytes[size++] = '?';        // As String.getBytes does
+                } else {
+                    ensure(3);
+                    bytes[size++] = (byte) (0xE0 | ch >> 12);
+                    bytes[size++] = (byte) (0x80 | ch >> 6 & 0x3F);
+                    bytes[size++] = (byte) (0x80 | ch & 0x3F);
+                }
+            }
+            return this;
+        }
+
+        // As String.valueOf(v), whole numbers below 10^7 (the usual results)
+        // are written without creating a String
+        ResponseBuffer appendDouble(double v) {
+            if (v == (long) v && Math.abs(v) < 1e7 && (v != 0 || 1 / v > 0)) {
+                return appendLong((long) v).append('.').append('0');
+            }
+            return appendAscii(String.valueOf(v));
+        }
+
+        ResponseBuffer appendLong(long n) {
+            if (n == Long.MIN_VALUE) {
+                return appendAscii(String.valueOf(n));
+            }
+            ensure(20);
+            if (n < 0) {
+                bytes[size++] = '-';
+                n = -n;
+            }
+            int digits = 1;
+            for (long rest = n; rest >= 10; rest /= 10) {
+                digits++;
+            }
+            size += digits;
+            for (int i = size - 1; i >= size - digits; i--) {
+                bytes[i] = (byte) ('0' + n % 10);
+                n /= 10;
+            }
+            return this;
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+            }
+        }
     }
 
-    private void sendResponse(HttpExchange exchange, String response) throws IOException {
-        exchange.sendResponseHeaders(HTTP_OK, response.getBytes().length);
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
-        os.close();
+    // --- Decodes application/x-www-form-urlencoded request bodies -----------
+
+    static final class FormDecoder {
+
+        private FormDecoder() {
+        }
+
+        // The value of the first field called name in body[0, length), or
+        // null. Percent escapes and + are decoded in place, so body is
+        // changed, and the value is read as UTF-8. A % not followed by two hex
+        // digits is kept as it is.
+        static String field(byte[] body, int length, String name) {
+            int start = 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && body[end] != '&' && body[end] != '\r' && body[end] != '\n') {
+                    end++;
+                }
+                if (end - start > name.length() && body[start + name.length()] == '='
+                        && matches(body, start, name)) {
+                    return decode(body, start + name.length() + 1, end);
+                }
+                start = end + 1;
+            }
+            return null;
+        }
+
+        private static boolean matches(byte[] body, int start, String name) {
+            for (int i = 0; i < name.length(); i++) {
+                if (body[start + i] != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String decode(byte[] body, int from, int to) {
+            int n = from;
+            for (int i = from; i < to; i++) {
+                byte b = body[i];
+                if (b == '+') {
+                    b = ' ';
+                } else if (b == '%' && i + 2 < to && hex(body[i + 1]) >= 0 && hex(body[i + 2]) >= 0) {
+                    b = (byte) (hex(body[i + 1]) << 4 | hex(body[i + 2]));
+                    i += 2;
+                }
+                body[n++] = b;
+            }
+            return new String(body, from, n - from, StandardCharsets.UTF_8);
+        }
+
+        private static int hex(byte b) {
+            return Character.digit(b, 16);
+        }
     }
 
     // --- Helper class to build HTML Elements -----------
@@ -0,0 +1,50 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ *   Executors for request and evaluation work
+ *
+ *   Virtual threads are used when the running JDK has them (21+), found by
+ *   reflection so the code still compiles and runs on older JDKs, where a
+ *   fixed pool of platform threads is used instead.
+ */
+final class Workers {
+
+    private Workers() {
+    }
+
+    // Default for asynchronous evaluation, created on first use
+    static ExecutorService shared() {
+        return Shared.EXECUTOR;
+    }
+
+    private static final class Shared {
+        static final ExecutorService EXECUTOR = virtualOrFixed(0);
+    }
+
+    // A thread per task executor on virtual threads, or a pool of threads if
+    // there are no virtual threads. threads 0 means one per core.
+    static ExecutorService virtualOrFixed(int threads) {
+        ExecutorService virtual = virtualThreads();
+        return virtual != null ? virtual : fixed(threads);
+    }
+
+    // A fixed pool of daemon platform threads, threads 0 means one per core
+    static ExecutorService fixed(int threads) {
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        return Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Null if the JDK has no virtual threads
+    static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package calculator.jmh;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ *   Each Calculator stage on its own and eval end to end, per input
+ *
+ *   The inputs are those of Bench.inputs(): a short REPL style expression,
+ *   1000 nested parentheses, a 1000 long ^ chain and a generated 100k token
+ *   expression. tokenize, lex, infix2Postfix and compile start from the
+ *   text or the tokens, evalPostfix and compiledEval from the result of the
+ *   stage before. eval goes through the expression cache, evalUncached
+ *   compiles every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+
+    @Param({"short", "nested", "powChain", "generated"})
+    public String input;
+
+    private DoubleSupplier tokenize;
+    private DoubleSupplier lex;
+    private DoubleSupplier infix2Postfix;
+    private DoubleSupplier evalPostfix;
+    private DoubleSupplier compile;
+    private DoubleSupplier compiledEval;
+    private DoubleSupplier eval;
+    private DoubleSupplier evalUncached;
+
+    @Setup
+    public void setUp() {
+        Map<String, DoubleSupplier> all = Workloads.all();
+        tokenize = Workloads.get(all, input + ".tokenize");
+        lex = Workloads.get(all, input + ".lex");
+        infix2Postfix = Workloads.get(all, input + ".infix2Postfix");
+        evalPostfix = Workloads.get(all, input + ".evalPostfix");
+        compile = Workloads.get(all, input + ".compile");
+        compiledEval = Workloads.get(all, input + ".compiledEval");
+        eval = Workloads.get(all, input + ".eval");
+        evalUncached = Workloads.get(all, input + ".evalUncached");
+    }
+
+    @Benchmark
+    public double tokenize() {
+        return tokenize.getAsDouble();
+    }
+
+    @Benchmark
+    public double lex() {
+        return lex.getAsDouble();
+    }
+
+    @Benchmark
+    public double infix2Postfix() {
+        return infix2Postfix.getAsDouble();
+    }
+
+    @Benchmark
+    public double evalPostfix() {
+        return evalPostfix.getAsDouble();
+    }
+
+    @Benchmark
+    public double compile() {
+        return compile.getAsDouble();
+    }
+
+    @Benchmark
+    public double compiledEval() {
+        return compiledEval.getAsDouble();
+    }
+
+    @Benchmark
+    public double eval() {
+        return eval.getAsDouble();
+    }
+
+    @Benchmark
+    public double evalUncached() {
+        return evalUncached.getAsDouble();
+    }
+}
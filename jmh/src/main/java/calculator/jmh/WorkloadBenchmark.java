@@ -0,0 +1,46 @@
+package calculator.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ *   The other workloads of Bench: exact number types, a formula over 100k
+ *   rows (row by row and column wise), math functions exact and fast, and
+ *   200 related formulas one by one and as one shared DAG
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkloadBenchmark {
+
+    @Param({"short.rational", "short.decimal", "formula.rows", "formula.columns", "math.exact", "math.fast",
+            "related.each", "related.shared"})
+    public String workload;
+
+    private DoubleSupplier run;
+
+    @Setup
+    public void setUp() {
+        run = Workloads.get(Workloads.all(), workload);
+    }
+
+    @Benchmark
+    public double run() {
+        return run.getAsDouble();
+    }
+}
@@ -0,0 +1,41 @@
+package calculator.jmh;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/*
+ *   The workloads of Bench, by name
+ *
+ *   The calculator is in the unnamed package, which code in a package cannot
+ *   refer to, and JMH does not take benchmark classes in the unnamed
+ *   package. So Bench.workloads() is looked up by name, once per benchmark
+ *   state, and only JDK types cross over: the benchmarks call a
+ *   DoubleSupplier and hand its value to JMH.
+ */
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    // All workloads, built anew with calculators and inputs of their own
+    @SuppressWarnings("unchecked")
+    static Map<String, DoubleSupplier> all() {
+        try {
+            Method workloads = Class.forName("Bench").getDeclaredMethod("workloads");
+            workloads.setAccessible(true);
+            return (Map<String, DoubleSupplier>) workloads.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Bench.workloads() not found, is the calculator jar built?", e);
+        }
+    }
+
+    // The workload called name in all
+    static DoubleSupplier get(Map<String, DoubleSupplier> all, String name) {
+        DoubleSupplier workload = all.get(name);
+        if (workload == null) {
+            throw new IllegalArgumentException("No workload " + name + ", Bench has " + all.keySet());
+        }
+        return workload;
+    }
+}